@@ -0,0 +1,155 @@
+package Client;
+
+import Server.MineSweeperBoard;
+import Server.Protocol;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.UnaryOperator;
+
+/*
+* Boards received from the server, decoded on the network thread and
+* handed to the EDT as a double buffer.
+*
+* The network thread applies every frame to the back board and notes the
+* cells it changed. The EDT takes the back board whenever it gets round
+* to drawing and gives the one it was drawing in exchange, so frames that
+* come in faster than Swing paints are merged into a single redraw of the
+* latest state. The board given back is brought up to date with the
+* frames it missed, on the network thread, before the next frame lands.
+* */
+final class BoardBuffer {
+  private final Runnable wake;
+  private final ReentrantLock lock = new ReentrantLock();
+
+  //written by the network thread, swapped by take(), guarded by lock
+  private MineSweeperBoard back;
+  //back has changes the EDT has not taken, and whether it was replaced whole
+  private boolean pending = false;
+  private boolean full = false;
+  private int[] changed = new int[64];
+  private int changedCount = 0;
+  //frames applied to back since the last take, guarded by lock
+  private List<UnaryOperator<MineSweeperBoard>> log = new ArrayList<>();
+  //frames the board given back by the EDT is missing, guarded by lock
+  private List<UnaryOperator<MineSweeperBoard>> missed;
+
+  /*
+  * back is a board of its own, equal to the one the EDT starts with.
+  * wake is run whenever there is something new to take.
+  * */
+  BoardBuffer(MineSweeperBoard back, Runnable wake) {
+    this.back = back;
+    this.wake = wake;
+  }
+
+  //Network thread: a full board arrived, decoded once and copied for the other buffer.
+  void replace(MineSweeperBoard board) {
+    MineSweeperBoard other = board.copy();
+    lock.lock();
+    try {
+      missed = null;
+      back = board;
+      full = true;
+      changedCount = 0;
+      log.clear();
+      log.add(b -> other);
+      signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  //Network thread: a binary delta arrived.
+  void apply(byte[] delta) {
+    lock.lock();
+    try {
+      catchUp();
+      int[] cells = Protocol.applyDelta(back, delta);
+      log.add(b -> {
+        Protocol.applyDelta(b, delta);
+        return b;
+      });
+      if (!full) {
+        if (changedCount + cells.length > back.getRows() * back.getColumns() / 4)
+          full = true;
+        else {
+          if (changedCount + cells.length > changed.length)
+            changed = Arrays.copyOf(changed, Math.max(changed.length * 2, changedCount + cells.length));
+          System.arraycopy(cells, 0, changed, changedCount, cells.length);
+          changedCount += cells.length;
+        }
+      }
+      signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /*
+  * EDT: swap front, the board drawn so far, for the latest one. Returns
+  * null if nothing arrived since the last call, front is kept then.
+  * */
+  Update take(MineSweeperBoard front) {
+    lock.lock();
+    try {
+      if (!pending)
+        return null;
+      Update update = new Update(back, full, full ? null : Arrays.copyOf(changed, changedCount));
+      back = front;
+      missed = log;
+      log = new ArrayList<>();
+      pending = false;
+      full = false;
+      changedCount = 0;
+      return update;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /*
+  * Apply the frames the back board missed while the EDT had it. Called
+  * with lock held, which is let go while the frames are replayed. That
+  * is safe because missed is only set by take(), which leaves nothing
+  * pending, and nothing is pending again until this thread signals, so
+  * take() returns without touching back meanwhile.
+  * */
+  private void catchUp() {
+    if (missed == null)
+      return;
+    MineSweeperBoard board = back;
+    List<UnaryOperator<MineSweeperBoard>> frames = missed;
+    missed = null;
+    lock.unlock();
+    try {
+      for (UnaryOperator<MineSweeperBoard> frame : frames)
+        board = frame.apply(board);
+    } finally {
+      lock.lock();
+    }
+    back = board;
+  }
+
+  private void signal() {
+    if (!pending) {
+      pending = true;
+      wake.run();
+    }
+  }
+
+  //A board handed to the EDT, with the cells changed since the last one unless it is new.
+  static final class Update {
+    final MineSweeperBoard board;
+    final boolean full;
+    final int[] changed;
+
+    private Update(MineSweeperBoard board, boolean full, int[] changed) {
+      this.board = board;
+      this.full = full;
+      this.changed = changed;
+    }
+  }
+}
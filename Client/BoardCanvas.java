@@ -0,0 +1,157 @@
+package Client;
+
+import Server.MineSweeperBoard;
+
+import javax.imageio.ImageIO;
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+/*
+* The game board drawn as one component.
+*
+* The cell images resource/0.png to 12.png are read once into an atlas
+* and every cell is a copy out of it. Only the cells inside the clip are
+* drawn, and a new board or a delta repaints just the cells whose image
+* changed, so a move costs a few blits whatever the size of the board.
+* */
+final class BoardCanvas extends JComponent {
+  //images 0 to 8 are numbers, then the mine, hidden, flagged and question mark
+  private static final int MINE = 9, HIDDEN = 10, FLAG = 11, QUESTION = 12;
+  private static final int SPRITES = 13;
+  private static final BufferedImage atlas;
+  static final int CELL;
+
+  static {
+    BufferedImage[] images = new BufferedImage[SPRITES];
+    int size = 0;
+    for (int i = 0; i < SPRITES; i++) {
+      try {
+        images[i] = ImageIO.read(new File("resource/" + i + ".png"));
+        size = Math.max(size, Math.max(images[i].getWidth(), images[i].getHeight()));
+      } catch (IOException | NullPointerException e) {
+        System.err.println("Failed to load resource/" + i + ".png");
+      }
+    }
+    CELL = size > 0 ? size : 15;
+    atlas = new BufferedImage(CELL * SPRITES, CELL, BufferedImage.TYPE_INT_RGB);
+    Graphics2D g = atlas.createGraphics();
+    for (int i = 0; i < SPRITES; i++) {
+      if (images[i] != null)
+        g.drawImage(images[i], i * CELL, 0, null);
+    }
+    g.dispose();
+  }
+
+  private MineSweeperBoard board;
+  private int rows, cols;
+  //image each cell was last drawn with
+  private byte[] shown = new byte[0];
+  //cells shown flagged or question marked
+  private int marked;
+
+  BoardCanvas(MineSweeperBoard board) {
+    setOpaque(true);
+    setBoard(board);
+  }
+
+  /*
+  * Show a new board. Cells that look the same as before are left alone,
+  * a board of another size is drawn in full.
+  * */
+  void setBoard(MineSweeperBoard board) {
+    this.board = board;
+    if (board.getRows() != rows || board.getColumns() != cols) {
+      rows = board.getRows();
+      cols = board.getColumns();
+      shown = new byte[rows * cols];
+      marked = 0;
+      for (int cell = 0; cell < shown.length; cell++)
+        update(cell);
+      Dimension size = new Dimension(cols * CELL, rows * CELL);
+      setPreferredSize(size);
+      revalidate();
+      repaint();
+      return;
+    }
+    for (int cell = 0; cell < shown.length; cell++) {
+      if (update(cell))
+        repaintCell(cell);
+    }
+  }
+
+  /*
+  * Repaint the given cells (y * columns + x) of board, which replaces the
+  * one shown and has the same size. The old board is not read again.
+  * */
+  void cellsChanged(MineSweeperBoard board, int[] changed) {
+    this.board = board;
+    for (int cell : changed) {
+      if (update(cell))
+        repaintCell(cell);
+    }
+  }
+
+  //Number of cells the player has flagged or marked with a question mark.
+  int marked() {
+    return marked;
+  }
+
+  //Cell under a point as y * columns + x, -1 if there is none.
+  int cellAt(Point p) {
+    int y = p.y / CELL, x = p.x / CELL;
+    if (p.x < 0 || p.y < 0 || y >= rows || x >= cols)
+      return -1;
+    return y * cols + x;
+  }
+
+  //Store the image a cell now needs, true if it differs from the one drawn.
+  private boolean update(int cell) {
+    byte sprite = sprite(cell / cols, cell % cols);
+    byte old = shown[cell];
+    if (sprite == old)
+      return false;
+    if (old == FLAG || old == QUESTION)
+      marked--;
+    if (sprite == FLAG || sprite == QUESTION)
+      marked++;
+    shown[cell] = sprite;
+    return true;
+  }
+
+  private byte sprite(int y, int x) {
+    int state = board.getState(y, x);
+    if (state == 0) return HIDDEN;
+    if (state == 1) return FLAG;
+    if (state == 2) return QUESTION;
+    if (board.isMine(y, x)) return MINE;
+    return (byte) board.getAdjacentMines(y, x);
+  }
+
+  private void repaintCell(int cell) {
+    repaint((cell % cols) * CELL, (cell / cols) * CELL, CELL, CELL);
+  }
+
+  @Override
+  protected void paintComponent(Graphics g) {
+    Rectangle clip = g.getClipBounds();
+    if (clip == null)
+      clip = new Rectangle(0, 0, getWidth(), getHeight());
+    g.setColor(getBackground());
+    g.fillRect(clip.x, clip.y, clip.width, clip.height);
+    int top = Math.max(clip.y / CELL, 0);
+    int bottom = Math.min((clip.y + clip.height + CELL - 1) / CELL, rows);
+    int left = Math.max(clip.x / CELL, 0);
+    int right = Math.min((clip.x + clip.width + CELL - 1) / CELL, cols);
+    for (int i = top; i < bottom; i++) {
+      for (int j = left; j < right; j++) {
+        int sprite = shown[i * cols + j];
+        int dx = j * CELL, dy = i * CELL;
+        g.drawImage(atlas, dx, dy, dx + CELL, dy + CELL,
+                sprite * CELL, 0, sprite * CELL + CELL, CELL, null);
+      }
+    }
+  }
+}
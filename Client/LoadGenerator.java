@@ -0,0 +1,295 @@
+package Client;
+
+import Server.LatencyHistogram;
+import Server.MineSweeperBoard;
+import Server.Protocol;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+* Headless load generator for the game server.
+*
+* Opens a number of sessions against a running MineSweeperServer and plays
+* random games on each at a fixed rate, with the occasional SCORE, LOADFROM
+* and SAVETO in between. Each session sends on a fixed schedule and latency
+* is taken from the time a command was due rather than the time it went
+* out, so a stalled server shows up in the percentiles instead of quietly
+* slowing the bots down.
+*
+* java Client.LoadGenerator [host] [port], settings are system properties:
+* bot.sessions:  concurrent sessions, 10 by default.
+* bot.rate:  commands per second per session, 5 by default.
+* bot.duration:  seconds to run, 30 by default.
+* bot.protocol:  1 for text, 2 for binary board frames, 3 (default) for
+*   binary frames and TIME only every Protocol.CORRECTION_SECONDS.
+* bot.board:  "rows,cols,density" passed to NEW, the classic board if unset.
+* bot.saveSlot:  slot used by SAVETO, 0 (default) never saves so the
+*   saved games in the database are left alone.
+* bot.batch:  moves per command, above 1 they go out as one MOVES, 1 by default.
+* bot.pipeline:  move commands sent back to back before reading any of the
+*   replies, 1 (default) waits for each. A burst counts as that many
+*   commands for the rate and each reply is timed from the burst's start.
+* */
+public final class LoadGenerator {
+  private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+  private static final long REPORT_NANOS = 5 * SECOND;
+
+  private final String host;
+  private final int port;
+  private final int sessions = Integer.getInteger("bot.sessions", 10);
+  private final double rate = Double.parseDouble(System.getProperty("bot.rate", "5"));
+  private final int duration = Integer.getInteger("bot.duration", 30);
+  private final int protocol = Integer.getInteger("bot.protocol", Protocol.LATEST);
+  private final String board = System.getProperty("bot.board");
+  private final int saveSlot = Integer.getInteger("bot.saveSlot", 0);
+  private final int batch = Math.max(1, Integer.getInteger("bot.batch", 1));
+  private final int pipeline = Math.max(1, Integer.getInteger("bot.pipeline", 1));
+
+  private final Map<String, Stat> stats = new LinkedHashMap<>();
+  private final AtomicInteger connected = new AtomicInteger();
+  private final LongAdder failedSessions = new LongAdder();
+  private final CountDownLatch finished;
+  private long end;
+
+  private LoadGenerator(String host, int port) {
+    this.host = host;
+    this.port = port;
+    for (String command : new String[]{"NEW", "UPDATE", "MOVES", "SCORE", "LOADFROM", "SAVETO"})
+      stats.put(command, new Stat());
+    finished = new CountDownLatch(sessions);
+  }
+
+  private void run() throws InterruptedException {
+    System.out.println("Running " + sessions + " sessions at " + rate + " commands/s each for "
+            + duration + "s against " + host + ':' + port);
+    long start = System.nanoTime();
+    end = start + duration * SECOND;
+    for (int i = 0; i < sessions; i++) {
+      Thread t = new Thread(new Bot(i), "MineSweeper-bot-" + i);
+      t.setDaemon(true);
+      t.start();
+    }
+
+    long lastCount = 0;
+    long last = start;
+    while (!finished.await(REPORT_NANOS, TimeUnit.NANOSECONDS)) {
+      long now = System.nanoTime();
+      long count = totalCount();
+      System.out.printf("%4ds  sessions %d  %8.1f commands/s  errors %d%n", (now - start) / SECOND,
+              connected.get(), (count - lastCount) * (double) SECOND / (now - last), totalErrors());
+      lastCount = count;
+      last = now;
+    }
+    report(System.nanoTime() - start);
+  }
+
+  private void report(long elapsed) {
+    System.out.printf("%n%-8s %9s %9s %9s %9s %9s %9s %9s %7s%n", "command", "count", "per s",
+            "p50 us", "p90 us", "p99 us", "p99.9 us", "max us", "errors");
+    for (Map.Entry<String, Stat> entry : stats.entrySet()) {
+      Stat stat = entry.getValue();
+      LatencyHistogram latency = stat.latency;
+      System.out.printf("%-8s %9d %9.1f %9d %9d %9d %9d %9d %7d%n", entry.getKey(), latency.count(),
+              latency.count() * (double) SECOND / elapsed, latency.percentile(0.5) / 1000,
+              latency.percentile(0.9) / 1000, latency.percentile(0.99) / 1000,
+              latency.percentile(0.999) / 1000, latency.max() / 1000, stat.errors.sum());
+    }
+    System.out.printf("total %d commands, %.1f/s, %d errors, %d of %d sessions failed%n", totalCount(),
+            totalCount() * (double) SECOND / elapsed, totalErrors(), failedSessions.sum(), sessions);
+  }
+
+  private long totalCount() {
+    long count = 0;
+    for (Stat stat : stats.values())
+      count += stat.latency.count();
+    return count;
+  }
+
+  private long totalErrors() {
+    long errors = 0;
+    for (Stat stat : stats.values())
+      errors += stat.errors.sum();
+    return errors;
+  }
+
+  /*
+  * One session. Keeps its own copy of the board from the server's
+  * replies so it can pick hidden cells to play.
+  * */
+  private final class Bot implements Runnable {
+    private final SplittableRandom random;
+    private DataInputStream in;
+    private DataOutputStream out;
+    private MineSweeperBoard game;
+    private boolean binary = false;
+
+    Bot(int id) {
+      random = new SplittableRandom(id);
+    }
+
+    @Override
+    public void run() {
+      try (Socket socket = new Socket(host, port)) {
+        socket.setTcpNoDelay(true);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        out = new DataOutputStream(socket.getOutputStream());
+        connected.incrementAndGet();
+        try {
+          play();
+        } finally {
+          connected.decrementAndGet();
+        }
+      } catch (IOException e) {
+        failedSessions.increment();
+      } finally {
+        finished.countDown();
+      }
+    }
+
+    private void play() throws IOException {
+      if (protocol >= Protocol.BINARY) {
+        out.writeUTF("HELLO " + protocol);
+        String[] reply = await("HELLO").split("\t", 2);
+        binary = reply[0].equals("HELLO") && Integer.parseInt(reply[1]) >= Protocol.BINARY;
+      }
+      long interval = (long) (SECOND / rate);
+      //spread the sessions over the first interval
+      long next = System.nanoTime() + random.nextLong(interval);
+      while (next < end) {
+        long wait = next - System.nanoTime();
+        if (wait > 0)
+          LockSupport.parkNanos(wait);
+        String command = nextCommand();
+        //only moves are pipelined, anything else changes what they would be played on
+        int burst = command.startsWith("UPDATE") || command.startsWith("MOVES") ? pipeline : 1;
+        String[] sent = new String[burst];
+        for (int i = 0; i < burst; i++) {
+          if (i > 0)
+            command = nextMove();
+          sent[i] = command.split(" ", 2)[0];
+          out.writeUTF(command);
+        }
+        for (String id : sent) {
+          String reply = await(replies(id));
+          Stat stat = stats.get(id);
+          stat.latency.record(System.nanoTime() - next);
+          if (reply.startsWith("ERROR"))
+            stat.errors.increment();
+        }
+        next += interval * burst;
+      }
+      out.writeUTF("EXIT");
+      await("EXIT");
+    }
+
+    private String nextCommand() {
+      if (game == null || game.getGameWon() || game.getGameLost())
+        return board == null ? "NEW" : "NEW " + board;
+      int roll = random.nextInt(100);
+      if (roll < 2)
+        return "SCORE";
+      if (roll < 4)
+        return "LOADFROM " + (1 + random.nextInt(5));
+      if (roll < 5 && saveSlot > 0)
+        return "SAVETO " + saveSlot;
+      return nextMove();
+    }
+
+    //UPDATE with one move on a hidden cell, or MOVES with bot.batch of them.
+    private String nextMove() {
+      if (batch == 1)
+        return "UPDATE " + randomMove();
+      StringBuilder moves = new StringBuilder("MOVES ");
+      for (int i = 0; i < batch; i++)
+        moves.append(i == 0 ? "" : ";").append(randomMove());
+      return moves.toString();
+    }
+
+    private String randomMove() {
+      int rows = game.getRows(), cols = game.getColumns();
+      int y = random.nextInt(rows), x = random.nextInt(cols);
+      for (int tries = 0; tries < 20 && game.getState(y, x) != 0; tries++) {
+        y = random.nextInt(rows);
+        x = random.nextInt(cols);
+      }
+      return String.valueOf(random.nextInt(10) == 0 ? 1 : 0) + ',' + y + ',' + x;
+    }
+
+    //Kinds of message that answer a command.
+    private String[] replies(String id) {
+      switch (id) {
+        case "UPDATE":
+        case "MOVES":
+          return new String[]{"BOARD", "DELTA"};
+        case "SCORE":
+          return new String[]{"SCORES"};
+        case "SAVETO":
+          return new String[]{"SAVED"};
+        default:
+          return new String[]{"BOARD"};
+      }
+    }
+
+    /*
+    * Read messages until one of the expected kind or an ERROR arrives and
+    * return it. Board updates are applied on the way, other messages such
+    * as TIME are skipped.
+    * */
+    private String await(String... kinds) throws IOException {
+      while (true) {
+        String message = read();
+        String kind = message.split("\t", 2)[0];
+        if (kind.equals("ERROR"))
+          return message;
+        for (String expected : kinds) {
+          if (kind.equals(expected))
+            return message;
+        }
+      }
+    }
+
+    //Next message from the server, board frames come back as "BOARD" or "DELTA".
+    private String read() throws IOException {
+      if (!binary) {
+        String message = in.readUTF();
+        if (message.startsWith("BOARD\t"))
+          game = new MineSweeperBoard(message.substring(6));
+        return message;
+      }
+      byte[] payload = new byte[in.readInt() - 1];
+      byte opcode = in.readByte();
+      in.readFully(payload);
+      switch (opcode) {
+        case Protocol.OP_BOARD:
+          game = Protocol.decodeBoard(payload);
+          return "BOARD";
+        case Protocol.OP_DELTA:
+          Protocol.applyDelta(game, payload);
+          return "DELTA";
+        default:
+          return new String(payload, StandardCharsets.UTF_8);
+      }
+    }
+  }
+
+  private static final class Stat {
+    final LatencyHistogram latency = new LatencyHistogram();
+    final LongAdder errors = new LongAdder();
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    String host = args.length > 0 ? args[0] : "localhost";
+    int port = args.length > 1 ? Integer.parseInt(args[1]) : 8000;
+    new LoadGenerator(host, port).run();
+  }
+}
@@ -1,6 +1,7 @@
 package Client;
 
 import Server.MineSweeperBoard;
+import Server.Protocol;
 
 import javax.swing.*;
 import java.awt.*;
@@ -8,6 +9,8 @@ import java.awt.event.*;
 import java.io.*;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
 
 /*
 * This game client display the game state to the player and send requests
@@ -18,9 +21,23 @@ public final class MineSweeperClient extends JFrame implements Runnable {
   Socket socket;
   private DataOutputStream toServer;
   private DataInputStream fromServer;
+  //board on screen, only touched on the EDT
   private MineSweeperBoard board = new MineSweeperBoard();
-
-  private JPanel topPanel, midPanel, bottomPanel;
+  //boards decoded by the network thread, waiting for the EDT
+  private BoardBuffer boards;
+  //true once the server agreed to send binary frames
+  private boolean binary = false;
+
+  private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+  //boards larger than this scroll
+  private static final Dimension MAX_VIEW = new Dimension(960, 720);
+
+  private BoardCanvas canvas;
+  private JScrollPane boardView;
+  private JLabel timeLabel, mineLabel;
+  //System.nanoTime() the game on screen runs out at, and the timer showing the countdown, EDT only
+  private long deadline;
+  private final Timer countdown = new Timer(0, e -> showTime());
   private JTextField nameField;
 
   public MineSweeperClient(String title) {
@@ -32,108 +49,80 @@ public final class MineSweeperClient extends JFrame implements Runnable {
       fromServer = new DataInputStream(socket.getInputStream());
       toServer = new DataOutputStream(socket.getOutputStream());
 
+      //servers that do not know HELLO ignore it and answer NEW with a text BOARD
+      toServer.writeUTF("HELLO " + Protocol.LATEST);
       toServer.writeUTF("NEW");
-      board = new MineSweeperBoard(fromServer.readUTF().split("\t", 2)[1]);
+      String[] reply = fromServer.readUTF().split("\t", 2);
+      if (reply[0].equals("HELLO") && Integer.parseInt(reply[1]) >= Protocol.BINARY) {
+        binary = true;
+        int length = fromServer.readInt() - 1;
+        fromServer.readByte();
+        board = readBoard(length);
+      }
+      else
+        board = new MineSweeperBoard(reply[1]);
+      boards = new BoardBuffer(board.copy(), () -> SwingUtilities.invokeLater(this::showBoard));
     } catch (IOException ie) {
       System.err.println("Connectin failed! Make sure JDBC driver is added and Minesweeper Server is running.");
       System.exit(1);
     }
 
-    this.setSize(244, 350);
     setResizable(false);
     createMenus();
     setupClientPanels();
+    pack();
     nameField = new JTextField(10);
+    countdown.setRepeats(false);
+    SwingUtilities.invokeLater(() -> setTime(board.getTimeRemain(), true));
 
     Thread t = new Thread(this);
     t.start();
   }
 
-  private JPanel addMidPanel()
-  {
-    int Y_AXIS = board.getMines().length;
-    int X_AXIS = board.getMines()[0].length;
-    JPanel midPanel = new JPanel(new GridLayout(Y_AXIS, X_AXIS));
-    byte[][] imgMap = getImg();
-
-    MineSweeperListener listener = new MineSweeperListener();
-
-    for (int i = 0; i < Y_AXIS; i++) {
-      for (int j = 0; j < X_AXIS; j++) {
-        ImagePanel panel = new ImagePanel("resource/" + Integer.toString(imgMap[i][j]) + ".png", i, j);
-        panel.addMouseListener(listener);
-        midPanel.add(panel);
-      }
-    }
-    midPanel.setBorder(BorderFactory.createLineBorder(Color.lightGray));
-    return midPanel;
-  }
-
-  /*Return a mapping of each cell to the image it displays.*/
-  private byte[][] getImg()
+  private JScrollPane addMidPanel()
   {
-    int Y_AXIS = board.getMines().length;
-    int X_AXIS = board.getMines()[0].length;
-    byte[][] result = new byte[Y_AXIS][X_AXIS];
-    byte[][] revealed = board.getRevealed();
-    boolean[][] mines = board.getMines();
-
-    for (int i = 0; i < Y_AXIS; i++) {
-      for (int j = 0; j < X_AXIS; j++) {
-        int id = revealed[i][j];
-        if (id < 0) {
-          if (mines[i][j])
-            result[i][j] = 9;
-          else {
-            byte count = 0;
-            for (int y = -1; y <= 1; y++) {
-              for (int x = -1; x <= 1; x++) {
-                if (!(y == 0 && x == 0)) {
-                  if (isValid(i + y, j + x, Y_AXIS, X_AXIS) && mines[i + y][j + x])
-                    count++;
-                }
-              }
-            }
-            result[i][j] = count;
-          }
-        }
-        else {
-          if (id == 0) result[i][j] = 10;
-          else if (id == 1) result[i][j] = 11;
-          else result[i][j] = 12;
-        }
-      }
-    }
-    return result;
+    canvas = new BoardCanvas(board);
+    canvas.addMouseListener(new MineSweeperListener());
+    boardView = new JScrollPane(canvas);
+    boardView.getVerticalScrollBar().setUnitIncrement(BoardCanvas.CELL);
+    boardView.getHorizontalScrollBar().setUnitIncrement(BoardCanvas.CELL);
+    boardView.setBorder(BorderFactory.createLineBorder(Color.lightGray));
+    fitBoardView();
+    return boardView;
   }
 
-  //check if this tile is within boundary of the board.
-  private boolean isValid(int y, int x, int Y_AXIS, int X_AXIS) {
-    return y >= 0 && y < Y_AXIS && x >= 0 && x < X_AXIS;
+  //Size the view to the board, up to MAX_VIEW.
+  private void fitBoardView() {
+    Dimension board = canvas.getPreferredSize();
+    Insets insets = boardView.getInsets();
+    int width = board.width, height = board.height;
+    //a scroll bar along one side takes room from the other
+    if (width > MAX_VIEW.width)
+      height += boardView.getHorizontalScrollBar().getPreferredSize().height;
+    if (height > MAX_VIEW.height)
+      width += boardView.getVerticalScrollBar().getPreferredSize().width;
+    boardView.setPreferredSize(new Dimension(Math.min(width, MAX_VIEW.width) + insets.left + insets.right,
+            Math.min(height, MAX_VIEW.height) + insets.top + insets.bottom));
   }
 
   private JPanel addBottomPanel()
   {
-    int Y_AXIS = board.getMines().length;
-    int X_AXIS = board.getMines()[0].length;
     JPanel bottomPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
-    int count = 40;
-    byte[][] revealed = board.getRevealed();
-    for (int i = 0; i < Y_AXIS; i++) {
-      for (int j = 0; j < X_AXIS; j++) {
-        if (revealed[i][j] > 0)
-          count--;
-      }
-    }
-    JLabel mineLabel = new JLabel(Integer.toString(count));
+    mineLabel = new JLabel();
+    showMinesLeft();
     bottomPanel.add(mineLabel);
     return bottomPanel;
   }
 
+  //Mines not yet flagged or question marked.
+  private void showMinesLeft() {
+    mineLabel.setText(Integer.toString(board.getMineCount() - canvas.marked()));
+  }
+
   private JPanel addTopPanel()
   {
     JPanel topPanel = new JPanel();
-    JLabel timeLabel = new JLabel("Time Remaining: " + board.getTimeRemain());
+    timeLabel = new JLabel("Time Remaining: " + board.getTimeRemain());
     topPanel.add(timeLabel);
     return topPanel;
   }
@@ -145,6 +134,7 @@ public final class MineSweeperClient extends JFrame implements Runnable {
     JMenu menu = new JMenu("File");
 
     menu.add(createFileNewItem());
+    menu.add(createFileCustomItem());
     menu.add(createFileOpenItem());
     menu.add(createFileSaveItem());
     menu.add(createFileExitItem());
@@ -193,6 +183,30 @@ public final class MineSweeperClient extends JFrame implements Runnable {
     return item;
   }
 
+  public JMenuItem createFileCustomItem()
+  {
+    JMenuItem item = new JMenuItem("New Custom...");
+    class MenuItemListener implements ActionListener
+    {
+      public void actionPerformed(ActionEvent event)
+      {
+        String size = JOptionPane.showInputDialog(null,
+                "Rows, columns and mine density, e.g. 30,40,0.2", "16,16,0.15625");
+        if (size == null)
+          return;
+        try {
+          toServer.writeUTF("NEW " + size.replace(" ", ""));
+        } catch (IOException e) {
+          System.err.println("Failed to start new game!");
+          e.printStackTrace();
+        }
+      }
+    }
+    ActionListener listener = new MenuItemListener();
+    item.addActionListener(listener);
+    return item;
+  }
+
   public JMenuItem createFileOpenItem()
   {
     JMenuItem item = new JMenuItem("Open");
@@ -303,41 +317,84 @@ public final class MineSweeperClient extends JFrame implements Runnable {
             null, options, options[0]));
   }
 
+  //Show the whole of a new board, the window only changes size with the board.
   private void refreshClient() {
-    this.remove(topPanel);
-    this.remove(midPanel);
-    this.remove(bottomPanel);
-    setupClientPanels();
-    this.revalidate();
-    this.repaint();
+    Dimension before = canvas.getPreferredSize();
+    canvas.setBoard(board);
+    setTime(board.getTimeRemain(), false);
+    showMinesLeft();
+    if (!canvas.getPreferredSize().equals(before)) {
+      fitBoardView();
+      pack();
+    }
+  }
+
+  //Redraw only the given cells (y * columns + x) and the mine counter.
+  private void refreshCells(int[] changed) {
+    canvas.cellsChanged(board, changed);
+    setTime(board.getTimeRemain(), false);
+    showMinesLeft();
   }
 
   private void setupClientPanels() {
-    topPanel = addTopPanel();
-    midPanel = addMidPanel();
-    bottomPanel = addBottomPanel();
-    this.add(topPanel, BorderLayout.NORTH);
-    this.add(midPanel, BorderLayout.CENTER);
-    this.add(bottomPanel, BorderLayout.SOUTH);
+    this.add(addTopPanel(), BorderLayout.NORTH);
+    this.add(addMidPanel(), BorderLayout.CENTER);
+    this.add(addBottomPanel(), BorderLayout.SOUTH);
   }
 
-  private void refreshTime(String time) {
-    this.remove(topPanel);
-    topPanel = new JPanel();
-    JLabel timeLabel = new JLabel("Time Remaining: " + time);
-    topPanel.add(timeLabel);
-    this.add(topPanel, BorderLayout.NORTH);
-    this.revalidate();
-    this.repaint();
+  /*
+  * Time left according to the server. TIME messages are exact when they
+  * are sent, the time in boards is rounded up to whole seconds, so that
+  * only moves the countdown if it shows another second, and then to the
+  * middle of it. Runs on the EDT.
+  * */
+  private void setTime(int seconds, boolean exact) {
+    if (exact)
+      deadline = System.nanoTime() + seconds * SECOND;
+    else if (secondsLeft() != seconds)
+      deadline = System.nanoTime() + seconds * SECOND - SECOND / 2;
+    showTime();
+  }
+
+  //Show the time left and wake up when it next drops, the server only sends it now and then.
+  private void showTime() {
+    countdown.stop();
+    if (board.getGameLost() || board.getGameWon()) {
+      timeLabel.setText("Time Remaining: " + board.getTimeRemain());
+      return;
+    }
+    int left = secondsLeft();
+    timeLabel.setText("Time Remaining: " + left);
+    if (left > 0) {
+      long next = deadline - (left - 1) * SECOND - System.nanoTime();
+      countdown.setInitialDelay((int) (next / 1000000) + 1);
+      countdown.start();
+    }
+  }
+
+  //Whole seconds until the deadline, rounded up.
+  private int secondsLeft() {
+    long remaining = deadline - System.nanoTime();
+    return remaining <= 0 ? 0 : (int) ((remaining + SECOND - 1) / SECOND);
+  }
+
+  //Read and decode the payload of a binary OP_BOARD frame.
+  private MineSweeperBoard readBoard(int length) throws IOException {
+    byte[] payload = new byte[length];
+    fromServer.readFully(payload);
+    return Protocol.decodeBoard(payload);
   }
 
   /*
   * Messages sent form the server:
-  * TIME: the server updated the time remaining on the current game
+  * TIME: the server corrected the time remaining on the current game, which
+  *   is otherwise counted down here
   * BOARD: server sent new game state to be displayed
+  * DELTA: (binary only) server sent the cells changed by the last move
   * LOADINFO: server sent info of the saved games, ready to take request for loading game
   * SAVEINFO: server sent info of the saved games, readt to take request for saving game
   * SCORES: display top 5 scores in a pop up window
+  * ERROR: server rejected the last request
   * EXIT: server acknowledges that the game client is about to terminate
   * */
   @Override
@@ -346,23 +403,35 @@ public final class MineSweeperClient extends JFrame implements Runnable {
     boolean exit = false;
     while (!exit) {
       try {
-        String[] command = fromServer.readUTF().split("\t", 2);
+        String message;
+        if (binary) {
+          int length = fromServer.readInt() - 1;
+          byte opcode = fromServer.readByte();
+          if (opcode == Protocol.OP_BOARD) {
+            boards.replace(readBoard(length));
+            continue;
+          }
+          if (opcode == Protocol.OP_DELTA) {
+            byte[] delta = new byte[length];
+            fromServer.readFully(delta);
+            boards.apply(delta);
+            continue;
+          }
+          byte[] text = new byte[length];
+          fromServer.readFully(text);
+          message = new String(text, StandardCharsets.UTF_8);
+        }
+        else
+          message = fromServer.readUTF();
+
+        String[] command = message.split("\t", 2);
         String id = command[0];
         switch (id) {
           case "TIME":
-            SwingUtilities.invokeLater(() -> refreshTime(command[1]));
+            SwingUtilities.invokeLater(() -> setTime(Integer.parseInt(command[1]), true));
             break;
           case "BOARD":
-            board = new MineSweeperBoard(command[1]);
-            SwingUtilities.invokeLater(() -> refreshClient());
-
-            if (board.getGameLost())
-              SwingUtilities.invokeLater(
-                      () -> JOptionPane.showMessageDialog(null, "You lost!"));
-            else if (board.getGameWon())
-              SwingUtilities.invokeLater(() ->
-                      JOptionPane.showMessageDialog(null,
-                              "You won! Your score is " + board.getTimeRemain()));
+            boards.replace(new MineSweeperBoard(command[1]));
             break;
           case "LOADINFO":
             String[] loadInfo = command[1].split(",");
@@ -402,6 +471,9 @@ public final class MineSweeperClient extends JFrame implements Runnable {
                         }
                       });
             break;
+          case "ERROR":
+            SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(null, command[1]));
+            break;
           case "EXIT":
             exit = true;
             break;
@@ -416,6 +488,33 @@ public final class MineSweeperClient extends JFrame implements Runnable {
     }
   }
 
+  /*
+  * Display the latest board from the network thread. Runs on the EDT,
+  * frames that arrived since the last call are drawn as one.
+  * */
+  private void showBoard() {
+    BoardBuffer.Update update = boards.take(board);
+    if (update == null)
+      return;
+    board = update.board;
+    if (update.full)
+      refreshClient();
+    else
+      refreshCells(update.changed);
+    showResult();
+  }
+
+  //Tell the player when the game is over. Runs on the EDT.
+  private void showResult() {
+    if (board.getGameLost())
+      SwingUtilities.invokeLater(
+              () -> JOptionPane.showMessageDialog(null, "You lost!"));
+    else if (board.getGameWon())
+      SwingUtilities.invokeLater(() ->
+              JOptionPane.showMessageDialog(null,
+                      "You won! Your score is " + board.getTimeRemain()));
+  }
+
   private class MineSweeperListener implements MouseListener {
 
     @Override
@@ -425,16 +524,21 @@ public final class MineSweeperClient extends JFrame implements Runnable {
     public void mousePressed(MouseEvent e) {
       if (board.getGameLost() || board.getGameWon())
         return;
-      ImagePanel clicked = (ImagePanel) e.getSource();
+      int cell = canvas.cellAt(e.getPoint());
+      if (cell < 0)
+        return;
+      int y = cell / board.getColumns();
+      int x = cell % board.getColumns();
+      //the middle button, or the left one on a revealed number, chords
       int b;
-      if (e.getButton() == MouseEvent.BUTTON1)
-        b = 0;
+      if (e.getButton() == MouseEvent.BUTTON2)
+        b = 2;
+      else if (e.getButton() == MouseEvent.BUTTON1)
+        b = board.getState(y, x) == -1 ? 2 : 0;
       else if (e.getButton() == MouseEvent.BUTTON3)
         b = 1;
       else return;
 
-      int x = clicked.findX();
-      int y = clicked.findY();
       try {
         toServer.writeUTF("UPDATE " + b + ',' + y + ',' + x);
       } catch (EOFException | SocketException se) {
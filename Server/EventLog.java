@@ -0,0 +1,296 @@
+package Server;
+
+import javax.swing.*;
+import javax.swing.text.BadLocationException;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+* Asynchronous event log of the server.
+*
+* Session threads put their messages into a fixed size ring buffer without
+* taking a lock, a single background thread timestamps them and writes them
+* to the sinks. When the ring is full new events are dropped and counted
+* rather than making a session wait, so logging never holds up a move and
+* never keeps more than the ring's worth of messages in memory.
+* */
+final class EventLog {
+  private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+  private static final DateTimeFormatter TIME =
+          DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+  private final int mask;
+  //slot i is free for position p when its sequence is p, and readable when it is p + 1
+  private final AtomicLongArray sequence;
+  private final long[] times;
+  private final String[] messages;
+  private final AtomicLong tail = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  //next position to read, only touched by the writer thread
+  private long head = 0;
+
+  private final List<Sink> sinks;
+  private final Thread writer;
+  private volatile boolean running = true;
+
+  //capacity is rounded up to a power of two
+  EventLog(int capacity, List<Sink> sinks) {
+    int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+    mask = size - 1;
+    sequence = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++)
+      sequence.set(i, i);
+    times = new long[size];
+    messages = new String[size];
+    this.sinks = new ArrayList<>(sinks);
+
+    writer = new Thread(this::drainLoop, "MineSweeper-log");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  //Queue a message for the sinks. Never blocks, drops the message if the ring is full.
+  void append(String message) {
+    long pos = tail.get();
+    while (true) {
+      long seq = sequence.get((int) pos & mask);
+      if (seq == pos) {
+        if (tail.compareAndSet(pos, pos + 1))
+          break;
+        pos = tail.get();
+      }
+      else if (seq < pos) {
+        dropped.incrementAndGet();
+        return;
+      }
+      else
+        pos = tail.get();
+    }
+    int i = (int) pos & mask;
+    times[i] = System.currentTimeMillis();
+    messages[i] = message;
+    //the volatile write publishes the plain writes above to the writer thread
+    sequence.set(i, pos + 1);
+  }
+
+  void append(String message, Throwable cause) {
+    append(message + ": " + cause);
+  }
+
+  //Write out what is queued, then stop the writer thread and close the sinks.
+  void close() {
+    running = false;
+    LockSupport.unpark(writer);
+    try {
+      writer.join(TimeUnit.SECONDS.toMillis(5));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    for (Sink sink : sinks) {
+      try {
+        sink.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  private void drainLoop() {
+    while (true) {
+      boolean wasRunning = running;
+      if (!drain()) {
+        if (!wasRunning)
+          return;
+        LockSupport.parkNanos(IDLE_NANOS);
+      }
+    }
+  }
+
+  //Write every published event to the sinks, returns false if there was none.
+  private boolean drain() {
+    boolean any = false;
+    while (true) {
+      int i = (int) head & mask;
+      if (sequence.get(i) != head + 1)
+        break;
+      long time = times[i];
+      String message = messages[i];
+      messages[i] = null;
+      sequence.set(i, head + mask + 1);
+      head++;
+      write(TIME.format(Instant.ofEpochMilli(time)) + ' ' + message);
+      any = true;
+    }
+    long lost = dropped.getAndSet(0);
+    if (lost > 0) {
+      write(TIME.format(Instant.now()) + " " + lost + " log events dropped, log buffer full");
+      any = true;
+    }
+    if (any) {
+      for (Sink sink : sinks) {
+        try {
+          sink.flush();
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    }
+    return any;
+  }
+
+  private void write(String line) {
+    for (Sink sink : sinks) {
+      try {
+        sink.write(line);
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /*
+  * Destination of formatted log lines. Only ever called from the writer
+  * thread, flush() is called after each batch of lines.
+  * */
+  interface Sink {
+    void write(String line) throws IOException;
+
+    default void flush() throws IOException {}
+
+    default void close() throws IOException {
+      flush();
+    }
+  }
+
+  static final class StdoutSink implements Sink {
+    private final Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+
+    @Override
+    public void write(String line) throws IOException {
+      out.write(line);
+      out.write('\n');
+    }
+
+    @Override
+    public void flush() throws IOException {
+      out.flush();
+    }
+  }
+
+  /*
+  * Appends to a file and rolls it over once it reaches maxBytes:
+  * minesweeper.log becomes minesweeper.log.1, .1 becomes .2 and so on,
+  * the oldest of the kept files is deleted.
+  * */
+  static final class FileSink implements Sink {
+    private final Path path;
+    private final long maxBytes;
+    private final int keep;
+    private Writer out;
+    private long size;
+
+    FileSink(Path path, long maxBytes, int keep) throws IOException {
+      this.path = path;
+      this.maxBytes = maxBytes;
+      this.keep = keep;
+      Path dir = path.toAbsolutePath().getParent();
+      if (dir != null)
+        Files.createDirectories(dir);
+      open();
+    }
+
+    @Override
+    public void write(String line) throws IOException {
+      if (size >= maxBytes)
+        roll();
+      out.write(line);
+      out.write('\n');
+      //close enough for the mostly ASCII log
+      size += line.length() + 1;
+    }
+
+    @Override
+    public void flush() throws IOException {
+      out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      out.close();
+    }
+
+    private void open() throws IOException {
+      size = Files.exists(path) ? Files.size(path) : 0;
+      out = Files.newBufferedWriter(path, StandardCharsets.UTF_8,
+              StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    private void roll() throws IOException {
+      out.close();
+      Files.deleteIfExists(rolled(keep));
+      for (int i = keep - 1; i > 0; i--) {
+        if (Files.exists(rolled(i)))
+          Files.move(rolled(i), rolled(i + 1), StandardCopyOption.REPLACE_EXISTING);
+      }
+      if (keep > 0)
+        Files.move(path, rolled(1), StandardCopyOption.REPLACE_EXISTING);
+      else
+        Files.delete(path);
+      open();
+    }
+
+    private Path rolled(int i) {
+      return path.resolveSibling(path.getFileName() + "." + i);
+    }
+  }
+
+  /*
+  * Shows the log in the server window. Each batch is appended on the EDT
+  * in one go, and the oldest lines are cut off past maxLines.
+  * */
+  static final class SwingSink implements Sink {
+    private final JTextArea area;
+    private final int maxLines;
+    private final StringBuilder pending = new StringBuilder();
+
+    SwingSink(JTextArea area, int maxLines) {
+      this.area = area;
+      this.maxLines = maxLines;
+    }
+
+    @Override
+    public void write(String line) {
+      pending.append(line).append('\n');
+    }
+
+    @Override
+    public void flush() {
+      if (pending.length() == 0)
+        return;
+      String text = pending.toString();
+      pending.setLength(0);
+      SwingUtilities.invokeLater(() -> {
+        area.append(text);
+        //the line after the last newline is empty and does not count
+        int extra = area.getLineCount() - 1 - maxLines;
+        if (extra > 0) {
+          try {
+            area.replaceRange("", 0, area.getLineEndOffset(extra - 1));
+          } catch (BadLocationException e) {
+            area.setText("");
+          }
+        }
+      });
+    }
+  }
+}
@@ -0,0 +1,63 @@
+package Server;
+
+import java.util.concurrent.*;
+
+/*
+* Server wide clock that drives the countdown of every running game.
+*
+* A single scheduler thread keeps the pending ticks, sessions whose game
+* is over or not started have nothing scheduled. Ticks are run on a
+* separate pool so a client with a full socket buffer only delays its
+* own countdown.
+* */
+final class GameClock {
+  static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  private static final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, daemon("MineSweeper-clock"));
+  private static final ThreadPoolExecutor ticker = (ThreadPoolExecutor) Executors.newCachedThreadPool(daemon("MineSweeper-tick"));
+
+  static {
+    scheduler.setRemoveOnCancelPolicy(true);
+  }
+
+  private GameClock() {}
+
+  //Run the task once after the given number of nanoseconds.
+  static ScheduledFuture<?> schedule(Runnable task, long delayNanos) {
+    return scheduler.schedule(() -> ticker.execute(task), delayNanos, TimeUnit.NANOSECONDS);
+  }
+
+  //Ticks waiting for their time, about one per running game.
+  static int pendingTicks() {
+    return scheduler.getQueue().size();
+  }
+
+  //Ticks that are due and not finished, this grows when the clock falls behind.
+  static int runningTicks() {
+    return ticker.getActiveCount();
+  }
+
+  //Whole seconds left until the deadline, rounded up, taken from System.nanoTime().
+  static int secondsUntil(long deadline) {
+    long remaining = deadline - System.nanoTime();
+    if (remaining <= 0)
+      return 0;
+    return (int) ((remaining + SECOND - 1) / SECOND);
+  }
+
+  //Nanoseconds until the value returned by secondsUntil(deadline) drops by one.
+  static long nanosToNextSecond(long deadline) {
+    long remaining = deadline - System.nanoTime();
+    if (remaining <= 0)
+      return 0;
+    return remaining - (secondsUntil(deadline) - 1) * SECOND;
+  }
+
+  private static ThreadFactory daemon(String name) {
+    return r -> {
+      Thread t = new Thread(r, name);
+      t.setDaemon(true);
+      return t;
+    };
+  }
+}
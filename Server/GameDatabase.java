@@ -0,0 +1,465 @@
+package Server;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/*
+* Shared access to the SQLite game database for all sessions.
+*
+* Reads borrow one of a fixed number of connections, each with its own
+* prepared statements. All writes go through a single writer thread with
+* its own connection, so sessions never compete for SQLite's write lock.
+* The database runs in WAL mode, which lets the readers keep going while
+* the writer commits.
+*
+* Saves are queued per slot and written in batches, one transaction for
+* everything that queued up while the previous batch was being written.
+* A saved game is the board in the save table, see SaveCodec, plus the
+* moves played on it since, in save_moves, see MoveLog.
+* */
+final class GameDatabase {
+  private static final long BORROW_TIMEOUT_SECONDS = 10;
+  private static final int MAX_PENDING_SAVES = 1024;
+
+  private final BlockingQueue<Reader> readers;
+  private final List<Reader> allReaders = new ArrayList<>();
+  private final ExecutorService writer;
+  private final Connection writeConn;
+  private final PreparedStatement saveGame, saveInfo, clearMoves, addMove, migrate, updateRank, addPlayer;
+  //saves waiting for the writer by slot, both guarded by saveLock
+  private final Map<Integer, PendingSave> pendingSaves = new LinkedHashMap<>();
+  private boolean flushQueued = false;
+  private final ReentrantLock saveLock = new ReentrantLock();
+  //slots whose last write failed, moves are not appended to them until a snapshot goes through. Writer only.
+  private final Set<Integer> failedSlots = new HashSet<>();
+
+  GameDatabase(String url, int numReaders) throws SQLException {
+    writeConn = DriverManager.getConnection(url);
+    try (Statement st = writeConn.createStatement()) {
+      st.execute("PRAGMA journal_mode=WAL;");
+      st.execute("PRAGMA busy_timeout=5000;");
+      st.execute("Create table if not exists players(name text primary key, first_slot int not null);");
+      st.execute("Create table if not exists save_moves(slot int not null, seq int not null, op int not null, "
+              + "y int not null, x int not null, primary key(slot, seq));");
+    }
+    saveGame = writeConn.prepareStatement("Insert or replace into save(id, info, save) values(?, ?, ?);");
+    saveInfo = writeConn.prepareStatement("Update save Set info = ? Where id = ?;");
+    clearMoves = writeConn.prepareStatement("Delete from save_moves where slot = ?;");
+    addMove = writeConn.prepareStatement("Insert into save_moves(slot, seq, op, y, x) values(?, "
+            + "(Select coalesce(max(seq), 0) + 1 from save_moves where slot = ?), ?, ?, ?);");
+    //only while the slot still holds the text that was converted
+    migrate = writeConn.prepareStatement("Update save Set save = ? Where id = ? and save = ?;");
+    updateRank = writeConn.prepareStatement("Update scores Set name = ?, score = ? Where rank = ?;");
+    addPlayer = writeConn.prepareStatement("Insert into players(name, first_slot) values(?, ?);");
+    writer = Executors.newSingleThreadExecutor(r -> {
+      Thread t = new Thread(r, "MineSweeper-db-writer");
+      t.setDaemon(true);
+      return t;
+    });
+
+    readers = new ArrayBlockingQueue<>(numReaders);
+    for (int i = 0; i < numReaders; i++) {
+      Reader reader = new Reader(DriverManager.getConnection(url));
+      allReaders.add(reader);
+      readers.add(reader);
+    }
+  }
+
+  //Info line of every save slot by slot id.
+  Map<Integer, String> getSaveInfo() throws SQLException {
+    Reader reader = borrow();
+    try (ResultSet r = reader.getInfo.executeQuery()) {
+      Map<Integer, String> info = new HashMap<>();
+      while (r.next())
+        info.put(r.getInt(1), r.getObject(2).toString());
+      return info;
+    } finally {
+      readers.add(reader);
+    }
+  }
+
+  //First slot of every player's save range by player name.
+  Map<String, Integer> getPlayers() throws SQLException {
+    Reader reader = borrow();
+    try (Statement st = reader.conn.createStatement();
+         ResultSet r = st.executeQuery("Select name, first_slot from players;")) {
+      Map<String, Integer> players = new HashMap<>();
+      while (r.next())
+        players.put(r.getString(1), r.getInt(2));
+      return players;
+    } finally {
+      readers.add(reader);
+    }
+  }
+
+  //The saved game of a slot, null if the slot does not exist.
+  SavedGame loadGame(int slot) throws SQLException {
+    Reader reader = borrow();
+    //one read transaction, so the board and its moves come from the same save
+    reader.conn.setAutoCommit(false);
+    try {
+      Object save;
+      reader.loadGame.setInt(1, slot);
+      try (ResultSet game = reader.loadGame.executeQuery()) {
+        if (!game.next())
+          return null;
+        save = game.getObject(1);
+      }
+      int[] moves = new int[0];
+      int size = 0;
+      reader.loadMoves.setInt(1, slot);
+      try (ResultSet move = reader.loadMoves.executeQuery()) {
+        while (move.next()) {
+          if (size == moves.length)
+            moves = Arrays.copyOf(moves, Math.max(48, size * 2));
+          moves[size++] = move.getInt(1);
+          moves[size++] = move.getInt(2);
+          moves[size++] = move.getInt(3);
+        }
+      }
+      return new SavedGame(save, Arrays.copyOf(moves, size));
+    } finally {
+      reader.conn.commit();
+      reader.conn.setAutoCommit(true);
+      readers.add(reader);
+    }
+  }
+
+  //The top 5 scores in rank order.
+  List<Score> getScores() throws SQLException {
+    Reader reader = borrow();
+    try (ResultSet ss = reader.getScore.executeQuery()) {
+      List<Score> scores = new ArrayList<>();
+      while (ss.next()) {
+        String name = ss.getObject(1).toString();
+        int score = Integer.parseInt(ss.getObject(2).toString());
+        scores.add(new Score(name, score));
+      }
+      return scores;
+    } finally {
+      readers.add(reader);
+    }
+  }
+
+  /*
+  * Queue a save without waiting for it. With a snapshot the slot is
+  * created or replaced by it and the moves, without one the moves are
+  * appended to the slot's log. A newer snapshot to a slot that is still
+  * queued replaces the older save, newer moves are added to it.
+  * Once the batch holding it is committed, or failed, done is called on
+  * the writer thread with null or the error.
+  * Returns false and queues nothing when MAX_PENDING_SAVES slots are
+  * already waiting.
+  * */
+  boolean saveGameLater(int slot, String info, byte[] snapshot, int[] moves, Consumer<SQLException> done) {
+    saveLock.lock();
+    try {
+      PendingSave pending = pendingSaves.get(slot);
+      if (pending == null) {
+        if (pendingSaves.size() >= MAX_PENDING_SAVES)
+          return false;
+        pending = new PendingSave(slot);
+        pendingSaves.put(slot, pending);
+      }
+      pending.info = info;
+      if (snapshot != null) {
+        pending.save = snapshot;
+        pending.moves = moves;
+      }
+      else if (pending.moves.length == 0)
+        pending.moves = moves;
+      else if (moves.length > 0) {
+        int[] all = Arrays.copyOf(pending.moves, pending.moves.length + moves.length);
+        System.arraycopy(moves, 0, all, pending.moves.length, moves.length);
+        pending.moves = all;
+      }
+      pending.callbacks.add(done);
+      if (!flushQueued) {
+        flushQueued = true;
+        writer.execute(this::flushSaves);
+      }
+      return true;
+    } finally {
+      saveLock.unlock();
+    }
+  }
+
+  //Write every queued save in one transaction. Runs on the writer thread.
+  private void flushSaves() {
+    List<PendingSave> batch;
+    saveLock.lock();
+    try {
+      batch = new ArrayList<>(pendingSaves.values());
+      pendingSaves.clear();
+      flushQueued = false;
+    } finally {
+      saveLock.unlock();
+    }
+
+    //moves for a slot whose snapshot failed would land on the wrong board
+    for (Iterator<PendingSave> it = batch.iterator(); it.hasNext(); ) {
+      PendingSave pending = it.next();
+      if (pending.save == null && failedSlots.contains(pending.slot)) {
+        it.remove();
+        finish(pending, new SQLException("Save slot " + pending.slot + " lost its last save"));
+      }
+    }
+    if (batch.isEmpty())
+      return;
+
+    SQLException error = null;
+    try {
+      inTransaction(() -> writeSaves(batch));
+      for (PendingSave pending : batch) {
+        if (pending.save != null)
+          failedSlots.remove(pending.slot);
+      }
+    } catch (SQLException e) {
+      error = e;
+      for (PendingSave pending : batch)
+        failedSlots.add(pending.slot);
+    }
+    for (PendingSave pending : batch)
+      finish(pending, error);
+  }
+
+  //Runs on the writer thread, inside the batch's transaction.
+  private void writeSaves(List<PendingSave> batch) throws SQLException {
+    for (PendingSave pending : batch) {
+      if (pending.save != null) {
+        saveGame.setInt(1, pending.slot);
+        saveGame.setString(2, pending.info);
+        saveGame.setBytes(3, pending.save);
+        saveGame.addBatch();
+        clearMoves.setInt(1, pending.slot);
+        clearMoves.addBatch();
+      }
+      else {
+        saveInfo.setString(1, pending.info);
+        saveInfo.setInt(2, pending.slot);
+        saveInfo.addBatch();
+      }
+    }
+    saveGame.executeBatch();
+    clearMoves.executeBatch();
+    saveInfo.executeBatch();
+    for (PendingSave pending : batch) {
+      int[] moves = pending.moves;
+      for (int i = 0; i < moves.length; i += 3) {
+        addMove.setInt(1, pending.slot);
+        addMove.setInt(2, pending.slot);
+        addMove.setInt(3, moves[i]);
+        addMove.setInt(4, moves[i + 1]);
+        addMove.setInt(5, moves[i + 2]);
+        addMove.addBatch();
+      }
+    }
+    addMove.executeBatch();
+  }
+
+  private static void finish(PendingSave pending, SQLException error) {
+    for (Consumer<SQLException> done : pending.callbacks)
+      done.accept(error);
+  }
+
+  /*
+  * Queue replacing a slot's board text from before SaveCodec with the
+  * same board encoded, without waiting for it. Nothing is written if
+  * the slot was saved again in the meantime.
+  * */
+  void migrateLater(int slot, String text, byte[] save, Consumer<SQLException> onError) {
+    writer.execute(() -> {
+      try {
+        migrate.setBytes(1, save);
+        migrate.setInt(2, slot);
+        migrate.setString(3, text);
+        migrate.executeUpdate();
+      } catch (SQLException e) {
+        onError.accept(e);
+      }
+    });
+  }
+
+  void addPlayer(String name, int firstSlot) throws SQLException {
+    write(() -> {
+      addPlayer.setString(1, name);
+      addPlayer.setInt(2, firstSlot);
+      addPlayer.executeUpdate();
+    });
+  }
+
+  /*
+  * Queue a rewrite of the ranks as rank 1, 2, 3... without waiting for it. The ranks are
+  * only taken when the writer gets to the task, so they are as recent as
+  * possible. Failures go to the given callback on the writer thread.
+  * */
+  void updateRanksLater(Supplier<List<Score>> ranks, Consumer<SQLException> onError) {
+    writer.execute(() -> {
+      try {
+        writeRanks(ranks.get());
+      } catch (SQLException e) {
+        onError.accept(e);
+      }
+    });
+  }
+
+  //All ranks in one transaction. Runs on the writer thread.
+  private void writeRanks(List<Score> ranks) throws SQLException {
+    inTransaction(() -> {
+      for (int i = 0; i < ranks.size(); i++) {
+        Score sr = ranks.get(i);
+        updateRank.setString(1, sr.name);
+        updateRank.setInt(2, sr.score);
+        updateRank.setInt(3, i + 1);
+        updateRank.addBatch();
+      }
+      updateRank.executeBatch();
+    });
+  }
+
+  //Run the task as one transaction on the writer connection. Runs on the writer thread.
+  private void inTransaction(SqlTask task) throws SQLException {
+    writeConn.setAutoCommit(false);
+    try {
+      task.run();
+      writeConn.commit();
+    } catch (SQLException e) {
+      writeConn.rollback();
+      throw e;
+    } finally {
+      writeConn.setAutoCommit(true);
+    }
+  }
+
+  //Waits for queued saves and other writes to finish before closing the connections.
+  void close() {
+    writer.shutdown();
+    try {
+      writer.awaitTermination(BORROW_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+      saveGame.close();
+      saveInfo.close();
+      clearMoves.close();
+      addMove.close();
+      migrate.close();
+      updateRank.close();
+      addPlayer.close();
+      writeConn.close();
+      for (Reader reader : allReaders)
+        reader.close();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (SQLException e) {
+      e.printStackTrace();
+    }
+  }
+
+  private Reader borrow() throws SQLException {
+    try {
+      Reader reader = readers.poll(BORROW_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+      if (reader == null)
+        throw new SQLException("No database connection available");
+      return reader;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted waiting for a database connection", e);
+    }
+  }
+
+  //Run the update on the writer thread and wait for it to finish.
+  private void write(SqlTask task) throws SQLException {
+    try {
+      writer.submit(() -> {
+        task.run();
+        return null;
+      }).get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof SQLException)
+        throw (SQLException) e.getCause();
+      throw new SQLException(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted waiting for the database writer", e);
+    }
+  }
+
+  private interface SqlTask {
+    void run() throws SQLException;
+  }
+
+  private static final class PendingSave {
+    final int slot;
+    String info;
+    //board string the moves start from, null to append them to the slot's log
+    byte[] save;
+    int[] moves = new int[0];
+    final List<Consumer<SQLException>> callbacks = new ArrayList<>(1);
+
+    PendingSave(int slot) {
+      this.slot = slot;
+    }
+  }
+
+  //A read only connection and the statements prepared on it.
+  private static final class Reader {
+    final Connection conn;
+    final PreparedStatement getInfo, loadGame, loadMoves, getScore;
+
+    Reader(Connection conn) throws SQLException {
+      this.conn = conn;
+      getInfo = conn.prepareStatement("Select id, info from save;");
+      loadGame = conn.prepareStatement("Select save from save where id = ?;");
+      loadMoves = conn.prepareStatement("Select op, y, x from save_moves where slot = ? order by seq;");
+      getScore = conn.prepareStatement("Select name, score from scores where rank < 6;");
+    }
+
+    void close() throws SQLException {
+      getInfo.close();
+      loadGame.close();
+      loadMoves.close();
+      getScore.close();
+      conn.close();
+    }
+  }
+
+  /*
+  * A slot's board and the moves played on it since, three ints each.
+  * The board is SaveCodec bytes, or a String for slots not written since.
+  * */
+  static final class SavedGame {
+    final Object save;
+    final int[] moves;
+
+    SavedGame(Object save, int[] moves) {
+      this.save = save;
+      this.moves = moves;
+    }
+  }
+
+  //Class used for comparing and sorting top scores.
+  static final class Score implements Comparable<Score> {
+    final String name;
+    final int score;
+
+    Score(String name, int score) {
+      this.name = name;
+      this.score = score;
+    }
+
+    @Override
+    public int compareTo(Score o) {
+      return this.score - o.score;
+    }
+  }
+}
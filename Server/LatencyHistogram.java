@@ -0,0 +1,79 @@
+package Server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+* Fixed size latency histogram in the style of HdrHistogram.
+*
+* Values are nanoseconds. Every power of two range is split into 16 linear
+* sub buckets, so a value is reported at most 1/16 above what was recorded,
+* and anything up to 2^41 ns, about 36 minutes, fits in 608 counters.
+* Recording is a single atomic add and never allocates.
+* */
+public final class LatencyHistogram {
+  private static final int SUB_BITS = 4;
+  private static final int SUB = 1 << SUB_BITS;
+  private static final int MAX_EXP = 40;
+  private static final long MAX_VALUE = (1L << (MAX_EXP + 1)) - 1;
+
+  private final AtomicLongArray counts = new AtomicLongArray((MAX_EXP - SUB_BITS + 2) * SUB);
+
+  public void record(long nanos) {
+    counts.incrementAndGet(index(Math.max(0, Math.min(nanos, MAX_VALUE))));
+  }
+
+  public long count() {
+    long total = 0;
+    for (int i = 0; i < counts.length(); i++)
+      total += counts.get(i);
+    return total;
+  }
+
+  //Smallest bucket bound that at least the given fraction of the values are below.
+  public long percentile(double fraction) {
+    long[] snapshot = new long[counts.length()];
+    long total = 0;
+    for (int i = 0; i < snapshot.length; i++) {
+      snapshot[i] = counts.get(i);
+      total += snapshot[i];
+    }
+    if (total == 0)
+      return 0;
+    long rank = Math.max(1, (long) Math.ceil(fraction * total));
+    long seen = 0;
+    for (int i = 0; i < snapshot.length; i++) {
+      seen += snapshot[i];
+      if (seen >= rank)
+        return highestValue(i);
+    }
+    return MAX_VALUE;
+  }
+
+  public long max() {
+    for (int i = counts.length() - 1; i >= 0; i--) {
+      if (counts.get(i) != 0)
+        return highestValue(i);
+    }
+    return 0;
+  }
+
+  public void reset() {
+    for (int i = 0; i < counts.length(); i++)
+      counts.set(i, 0);
+  }
+
+  private static int index(long value) {
+    if (value < SUB)
+      return (int) value;
+    int exp = 63 - Long.numberOfLeadingZeros(value);
+    return (exp - SUB_BITS + 1) * SUB + (int) ((value >>> (exp - SUB_BITS)) & (SUB - 1));
+  }
+
+  private static long highestValue(int index) {
+    if (index < SUB)
+      return index;
+    int exp = index / SUB + SUB_BITS - 1;
+    long width = 1L << (exp - SUB_BITS);
+    return (1L << exp) + (index % SUB) * width + width - 1;
+  }
+}
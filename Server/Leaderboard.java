@@ -0,0 +1,85 @@
+package Server;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+* The top scores of the server, held in memory.
+*
+* SCORE and the high score check read the skip list without locking.
+* New scores are ranked under a lock, so concurrent winners cannot push
+* each other out, and the scores table is rewritten in the background.
+* Changes that arrive while a write is queued go out with that write.
+* */
+final class Leaderboard {
+  static final int SIZE = 5;
+
+  //highest score first, equal scores keep the order they were set in
+  private final ConcurrentSkipListSet<Entry> ranks = new ConcurrentSkipListSet<>(
+          Comparator.comparingInt((Entry e) -> -e.score.score).thenComparingLong(e -> e.order));
+  private final ReentrantLock lock = new ReentrantLock();
+  private final AtomicBoolean dirty = new AtomicBoolean(false);
+  private final GameDatabase db;
+  private final EventLog log;
+  private long order = 0;
+
+  Leaderboard(GameDatabase db, EventLog log) throws SQLException {
+    this.db = db;
+    this.log = log;
+    for (GameDatabase.Score score : db.getScores())
+      ranks.add(new Entry(score, order++));
+  }
+
+  //The top scores, best first.
+  List<GameDatabase.Score> top() {
+    List<GameDatabase.Score> top = new ArrayList<>(SIZE);
+    for (Entry entry : ranks) {
+      if (top.size() == SIZE)
+        break;
+      top.add(entry.score);
+    }
+    return top;
+  }
+
+  //True if the score would make it onto the board.
+  boolean qualifies(int score) {
+    if (ranks.size() < SIZE)
+      return true;
+    List<GameDatabase.Score> top = top();
+    return score > top.get(top.size() - 1).score;
+  }
+
+  void submit(String name, int score) {
+    lock.lock();
+    try {
+      ranks.add(new Entry(new GameDatabase.Score(name, score), order++));
+      while (ranks.size() > SIZE)
+        ranks.pollLast();
+    } finally {
+      lock.unlock();
+    }
+    if (dirty.compareAndSet(false, true))
+      db.updateRanksLater(this::snapshot, e -> log.append("Failed to save the high scores", e));
+  }
+
+  //Called by the database writer right before it writes the ranks.
+  private List<GameDatabase.Score> snapshot() {
+    dirty.set(false);
+    return top();
+  }
+
+  private static final class Entry {
+    final GameDatabase.Score score;
+    final long order;
+
+    Entry(GameDatabase.Score score, long order) {
+      this.score = score;
+      this.order = order;
+    }
+  }
+}
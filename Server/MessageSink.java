@@ -0,0 +1,19 @@
+package Server;
+
+import java.io.IOException;
+
+/*
+* Destination for the frames a MineSweeperHandler sends to its game client.
+* Frames arrive already encoded in the session's Protocol version. The
+* blocking server writes them straight to the socket stream, the selector
+* based server queues them for its I/O thread, unsent() tells how far
+* behind the socket is.
+* */
+interface MessageSink {
+  void send(byte[] frame) throws IOException;
+
+  //Bytes accepted by send() that are not written to the socket yet.
+  default long unsent() {
+    return 0;
+  }
+}
@@ -1,5 +1,23 @@
 package Server;
 
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/*
+* The board is split into chunks of 64x64 cells. A chunk is only allocated
+* once a cell in it is revealed, flagged or asked for its mines, so large
+* boards cost nothing where nobody has played yet.
+*
+* Generated boards derive the mines of each chunk from the board seed and
+* the chunk position, so a chunk can be created at any time and always
+* gets the same mines. Boards built from a string or a decoder without a
+* seed have their mines set one by one, chunks without mines are left out.
+* Boards with at most EAGER_CHUNKS chunks are allocated up front.
+*
+* Inside a chunk every row is one long, bit x of a row is column x & 63.
+* Java only uses the low six bits of a long shift, so 1L << x picks the
+* right bit for a column anywhere on the board.
+* */
 public final class MineSweeperBoard {
   /*states for revealed:
   -1: revealed;
@@ -7,85 +25,269 @@ public final class MineSweeperBoard {
   1:  hidden flagged;
   2:  hidden flag crossed;
    */
-  private boolean [][] mines;
-  private byte [][] revealed;
+  public static final int MAX_SIZE = 4096;
+  private static final int CHUNK_BITS = 6;
+  static final int CHUNK = 1 << CHUNK_BITS;
+  private static final int EAGER_CHUNKS = 16;
+  //initial size of the change buffer, and the size above which clearChanges() may give it back
+  private static final int CHANGES = 16;
+  private static final int MAX_IDLE_CHANGES = 1024;
+
+  private int rows;
+  private int cols;
+  private int chunkCols;
+  //null until a cell in the chunk is touched
+  private Chunk[] chunks;
+  //mine layout of generated boards, seeded is false for explicit layouts
+  private boolean seeded;
+  private long seed;
+  private double density;
+  private int totalMines;
+  //cells without a mine that are not revealed yet, the game is won at 0
+  private int hiddenSafe;
   private int timeRemain;
   private boolean GAME_WON = false;
   private boolean GAME_LOST = false;
+  //cells changed since the last clearChanges(), as y * columns + x
+  private int[] changes = new int[CHANGES];
+  private int numChanges = 0;
 
   public MineSweeperBoard() {
-    int y_SIZE = 16;
-    int x_SIZE = 16;
-    int numMines = 40;
+    this(16, 16, 40 / 256.0, new SplittableRandom().nextLong());
+  }
 
+  /*
+  * A new game with the given size and share of cells holding a mine.
+  * The same seed always gives the same mines.
+  * */
+  public MineSweeperBoard(int rows, int cols, double density, long seed) {
+    if (rows < 1 || cols < 1 || rows > MAX_SIZE || cols > MAX_SIZE)
+      throw new IllegalArgumentException("Board size out of range: " + rows + "x" + cols);
+    if (!(density > 0 && density < 1))
+      throw new IllegalArgumentException("Mine density out of range: " + density);
     timeRemain = 1000;
-    mines = new boolean[y_SIZE][x_SIZE];
-    revealed = new byte[y_SIZE][x_SIZE];
-    //lay down numMines numbers of mines randomly on the board.
-    while (numMines > 0) {
-      int x = (int) Math.floor(Math.random() * x_SIZE);
-      int y = (int) Math.floor(Math.random() * y_SIZE);
-      if (!mines[y][x]) {
-        mines[y][x] = true;
-        numMines--;
-      }
+    allocate(rows, cols);
+    this.seeded = true;
+    this.seed = seed;
+    this.density = density;
+    for (int cy = 0; cy < chunks.length / chunkCols; cy++) {
+      for (int cx = 0; cx < chunkCols; cx++)
+        totalMines += minesInChunk(cy, cx);
+    }
+    hiddenSafe = rows * cols - totalMines;
+    //the count is rounded per chunk, a tiny board can end up all mines
+    if (hiddenSafe == 0)
+      throw new IllegalArgumentException("Mine density " + density + " leaves no safe cell on a " + rows + "x" + cols + " board");
+    if (chunks.length <= EAGER_CHUNKS) {
+      for (int i = 0; i < chunks.length; i++)
+        materialise(i / chunkCols, i % chunkCols);
     }
   }
 
   /*construct a MineSweeperBoard from a string.
     String is generated using toString() method.
+    Generated boards carry their seed and density as two extra fields,
+    their mines are then taken from the seed.
    */
   public MineSweeperBoard(String board) {
     String[] fields = board.split(",");
+    String[] mineRows = fields[3].split(" ");
+    String[] revealedRows = fields[4].split(" ");
+    if (fields.length > 6)
+      copyBoard(new MineSweeperBoard(mineRows.length, mineRows[0].length(),
+              Double.parseDouble(fields[6]), Long.parseLong(fields[5])));
+    else {
+      allocate(mineRows.length, mineRows[0].length());
+      hiddenSafe = rows * cols;
+    }
     timeRemain = Integer.parseInt(fields[0]);
     GAME_WON = fields[1].equals("t");
     GAME_LOST = fields[2].equals("t");
 
-    String[] mineRows = fields[3].split(" ");
-    String[] revealedRows = fields[4].split(" ");
-    mines = new boolean[mineRows.length][mineRows[0].length()];
-    revealed = new byte[mineRows.length][mineRows[0].length()];
-
-    for (int i = 0; i < mines.length; i++) {
-      for (int j = 0; j < mines[0].length; j++) {
+    for (int i = 0; i < rows; i++) {
+      for (int j = 0; j < cols; j++) {
         char mine = mineRows[i].charAt(j);
-        if (mine == '1')
-          mines[i][j] = true;
+        if (mine == '1' && !seeded)
+          setMine(i, j);
         char reveal = revealedRows[i].charAt(j);
         switch (reveal) {
           case '_':
-            revealed[i][j] = -1;
+            setState(i, j, (byte) -1);
             break;
           case 'F':
-            revealed[i][j] = 1;
+            setState(i, j, (byte) 1);
             break;
           case 'X':
-            revealed[i][j] = 2;
+            setState(i, j, (byte) 2);
             break;
         }
       }
     }
   }
 
+  //construct an empty, all hidden MineSweeperBoard to be filled in by a decoder.
+  MineSweeperBoard(int rows, int cols, int timeRemain, boolean won, boolean lost) {
+    allocate(rows, cols);
+    hiddenSafe = rows * cols;
+    this.timeRemain = timeRemain;
+    this.GAME_WON = won;
+    this.GAME_LOST = lost;
+  }
+
+  private void allocate(int rows, int cols) {
+    this.rows = rows;
+    this.cols = cols;
+    chunkCols = (cols + CHUNK - 1) >> CHUNK_BITS;
+    chunks = new Chunk[((rows + CHUNK - 1) >> CHUNK_BITS) * chunkCols];
+  }
+
   /*
   Make copy of a Board.
   */
   public void copyBoard(MineSweeperBoard board) {
     if (board == null)
       return;
-    this.mines = board.mines;
-    this.revealed = board.revealed;
+    this.rows = board.rows;
+    this.cols = board.cols;
+    this.chunkCols = board.chunkCols;
+    this.chunks = board.chunks;
+    this.seeded = board.seeded;
+    this.seed = board.seed;
+    this.density = board.density;
+    this.totalMines = board.totalMines;
+    this.hiddenSafe = board.hiddenSafe;
     this.timeRemain = board.timeRemain;
     this.GAME_WON = board.GAME_WON;
     this.GAME_LOST = board.GAME_LOST;
+    clearChanges();
+  }
+
+  //A board of its own in the same state, for a second buffer of the same game.
+  public MineSweeperBoard copy() {
+    MineSweeperBoard copy = new MineSweeperBoard(rows, cols, timeRemain, GAME_WON, GAME_LOST);
+    copy.copyBoard(this);
+    copy.chunks = new Chunk[chunks.length];
+    for (int i = 0; i < chunks.length; i++) {
+      if (chunks[i] != null)
+        copy.chunks[i] = chunks[i].copy();
+    }
+    return copy;
+  }
+
+  //Forget the recorded change set, called before each operation.
+  void clearChanges() {
+    //a cascade over most of a large board should not pin its buffer for the rest of the game
+    if (changes.length > MAX_IDLE_CHANGES && numChanges < changes.length / 4)
+      changes = new int[CHANGES];
+    numChanges = 0;
+  }
+
+  //Number of cells changed since the last clearChanges().
+  int getChangeCount() {
+    return numChanges;
+  }
+
+  //Index (y * columns + x) of the i-th changed cell.
+  int getChange(int i) {
+    return changes[i];
+  }
+
+  public int getRows() {
+    return rows;
+  }
+
+  public int getColumns() {
+    return cols;
   }
 
+  //Number of mines on the whole board.
+  public int getMineCount() {
+    return totalMines;
+  }
+
+  void setMineCount(int mines) {
+    totalMines = mines;
+  }
+
+  //True if the mines come from getSeed() and getDensity().
+  boolean isSeeded() {
+    return seeded;
+  }
+
+  long getSeed() {
+    return seed;
+  }
+
+  double getDensity() {
+    return density;
+  }
+
+  public boolean isMine(int y, int x) {
+    return (chunkAt(y, x).mines[y & (CHUNK - 1)] & (1L << x)) != 0;
+  }
+
+  //Number of mines on the up to eight cells around this one.
+  public int getAdjacentMines(int y, int x) {
+    return chunkAt(y, x).counts[((y & (CHUNK - 1)) << CHUNK_BITS) | (x & (CHUNK - 1))];
+  }
+
+  //State of a cell, using the same values as getRevealed(). Does not allocate.
+  public byte getState(int y, int x) {
+    Chunk chunk = chunks[chunkIndex(y, x)];
+    if (chunk == null)
+      return 0;
+    int row = y & (CHUNK - 1);
+    long bit = 1L << x;
+    int low = (chunk.low[row] & bit) != 0 ? 1 : 0;
+    int high = (chunk.high[row] & bit) != 0 ? 2 : 0;
+    return (byte) ((low | high) == 3 ? -1 : (low | high));
+  }
+
+  //True if the chunk holding the cell was never allocated, its cells are then all hidden.
+  boolean isUntouched(int y, int x) {
+    return chunks[chunkIndex(y, x)] == null;
+  }
+
+  //Copy of the mine layout, built on each call.
   public boolean[][] getMines() {
-    return mines;
+    boolean[][] result = new boolean[rows][cols];
+    long[][] band = null;
+    for (int i = 0; i < rows; i++) {
+      if ((i & (CHUNK - 1)) == 0)
+        band = getMineBand(i);
+      for (int j = 0; j < cols; j++)
+        result[i][j] = isMine(band, i, j);
+    }
+    return result;
+  }
+
+  /*
+  * Mine rows of every chunk in the band of chunks holding row y, by chunk
+  * column, null for chunks without mines. Mines of chunks that are not
+  * allocated are generated for the call, so this is how to walk all mines
+  * without allocating the whole board.
+  * */
+  long[][] getMineBand(int y) {
+    long[][] band = new long[chunkCols][];
+    for (int cx = 0; cx < chunkCols; cx++)
+      band[cx] = mineRows(y >> CHUNK_BITS, cx);
+    return band;
+  }
+
+  //Mine lookup in the result of getMineBand(y).
+  static boolean isMine(long[][] band, int y, int x) {
+    long[] mines = band[x >> CHUNK_BITS];
+    return mines != null && (mines[y & (CHUNK - 1)] & (1L << x)) != 0;
   }
 
+  //Copy of the cell states, built on each call.
   public byte[][] getRevealed() {
-    return revealed;
+    byte[][] result = new byte[rows][cols];
+    for (int i = 0; i < rows; i++) {
+      for (int j = 0; j < cols; j++)
+        result[i][j] = getState(i, j);
+    }
+    return result;
   }
 
   public boolean getGameWon() {
@@ -109,56 +311,195 @@ public final class MineSweeperBoard {
     GAME_WON = true;
   }
 
-  void decrementTime() {
-    if (timeRemain > 0) timeRemain--;
+  void setTimeRemain(int time) {
+    timeRemain = Math.max(time, 0);
+  }
+
+  //Place a mine on a board without a seed, keeping the counts around it up to date.
+  void setMine(int y, int x) {
+    Chunk chunk = chunkAt(y, x);
+    int row = y & (CHUNK - 1);
+    if ((chunk.mines[row] & (1L << x)) != 0)
+      return;
+    chunk.mines[row] |= 1L << x;
+    totalMines++;
+    if (getState(y, x) >= 0)
+      hiddenSafe--;
+    for (int i = Math.max(y - 1, 0); i <= Math.min(y + 1, rows - 1); i++) {
+      for (int j = Math.max(x - 1, 0); j <= Math.min(x + 1, cols - 1); j++) {
+        Chunk around = chunks[chunkIndex(i, j)];
+        //chunks allocated later count their border mines themselves
+        if ((i != y || j != x) && around != null)
+          around.counts[((i & (CHUNK - 1)) << CHUNK_BITS) | (j & (CHUNK - 1))]++;
+      }
+    }
+  }
+
+  //Write the two state bits of a cell without recording the change.
+  private void setState(int y, int x, byte state) {
+    Chunk chunk = chunkAt(y, x);
+    int row = y & (CHUNK - 1);
+    long bit = 1L << x;
+    if ((chunk.mines[row] & bit) == 0 && (getState(y, x) < 0) != (state < 0))
+      hiddenSafe += state < 0 ? -1 : 1;
+    int bits = state < 0 ? 3 : state;
+    chunk.low[row] = (bits & 1) != 0 ? chunk.low[row] | bit : chunk.low[row] & ~bit;
+    chunk.high[row] = (bits & 2) != 0 ? chunk.high[row] | bit : chunk.high[row] & ~bit;
+  }
+
+  private void setCell(int y, int x, byte state) {
+    if (getState(y, x) == state)
+      return;
+    setState(y, x, state);
+    recordChange(y * cols + x);
+  }
+
+  //Set a cell state of a board being read back from a save, not recorded as a change.
+  void restoreState(int index, byte state) {
+    setState(index / cols, index % cols, state);
+  }
+
+  //Apply a cell state received in a delta update.
+  void setCell(int index, byte state) {
+    setCell(index / cols, index % cols, state);
+  }
+
+  private void recordChange(int index) {
+    if (numChanges == changes.length)
+      changes = Arrays.copyOf(changes, numChanges * 2);
+    changes[numChanges++] = index;
+  }
+
+  //Apply the game result received in a delta update.
+  void setResult(boolean won, boolean lost) {
+    GAME_WON = won;
+    GAME_LOST = lost;
   }
 
   /*
-  * If revealed cell is empty, try to reveal adjacent cells that
-  * are also empty. Position (y, x) called on cascade should have
-   * no mine on or next to it and is already revealed.
+  * If revealed cell is empty, reveal the cells around it, and keep going
+  * from every newly revealed cell that is also empty. Position (y, x)
+  * should have no mine on or next to it and is already revealed.
+  * Cells are pushed on an explicit stack the moment they are revealed,
+  * so each cell is visited once and large open areas cannot overflow
+  * the thread stack.
   * */
   private void cascade(int row, int col) {
-    int numRows = mines.length;
-    int numCols = mines[0].length;
-    for (int y = -1; y <= 1; y++) {
-      for (int x = -1; x <= 1; x++) {
-        int yPos = row + y;
-        int xPos = col + x;
-        if (isValid(yPos, xPos, numRows, numCols) && revealed[yPos][xPos] >= 0) {
-          revealed[yPos][xPos] = -1;
-          if (getMineCount(yPos, xPos) == 0)
-            cascade(yPos, xPos);
+    int[] stack = new int[16];
+    int size = 0;
+    stack[size++] = row * cols + col;
+    while (size > 0) {
+      int cell = stack[--size];
+      int y = cell / cols;
+      int x = cell % cols;
+      for (int i = Math.max(y - 1, 0); i <= Math.min(y + 1, rows - 1); i++) {
+        for (int j = Math.max(x - 1, 0); j <= Math.min(x + 1, cols - 1); j++) {
+          if (getState(i, j) >= 0) {
+            setCell(i, j, (byte) -1);
+            if (getAdjacentMines(i, j) == 0) {
+              if (size == stack.length)
+                stack = Arrays.copyOf(stack, size * 2);
+              stack[size++] = i * cols + j;
+            }
+          }
         }
       }
     }
   }
 
+  /*
+  * Play one move, op is MoveLog.REVEAL, FLAG or CHORD. The game is won
+  * once no safe cell is left hidden and no mine was revealed. Returns
+  * true if this move won it.
+  * Saved games are replayed through here, so it must stay deterministic.
+  * */
+  boolean play(int op, int y, int x) {
+    if (op == MoveLog.REVEAL)
+      reveal(y, x);
+    else if (op == MoveLog.FLAG)
+      setFlag(y, x);
+    else if (op == MoveLog.CHORD)
+      chord(y, x);
+    if (!GAME_WON && !GAME_LOST && checkWinCon()) {
+      GAME_WON = true;
+      return true;
+    }
+    return false;
+  }
+
+  //The board as it was before the first move, null if it was not generated from a seed.
+  MineSweeperBoard startBoard() {
+    return seeded ? new MineSweeperBoard(rows, cols, density, seed) : null;
+  }
+
   //Attempts to flag a tile
   void setFlag(int y, int x) {
-    if (revealed[y][x] == 2)
-      revealed[y][x] = 0;
-    else if (revealed[y][x] >= 0)
-      revealed[y][x]++;
+    byte state = getState(y, x);
+    if (state == 2)
+      setCell(y, x, (byte) 0);
+    else if (state >= 0)
+      setCell(y, x, (byte) (state + 1));
   }
 
   //Attempts to reveal a tile
   void reveal(int y, int x) {
-    if (revealed[y][x] == 0) {
-      revealed[y][x]--;
-      if (mines[y][x])
+    if (getState(y, x) == 0) {
+      setCell(y, x, (byte) -1);
+      if (isMine(y, x))
         setGameLost();
-      else if (getMineCount(y, x) == 0)
+      else if (getAdjacentMines(y, x) == 0)
         cascade(y, x);
     }
   }
 
-  //Definitely reveal all bomb tiles, for when losing the game
+  /*
+  * Reveal the hidden cells around a revealed number once that many flags
+  * are placed around it, cascading as usual. A misplaced flag makes it
+  * reveal a mine and lose the game, the rest is then left alone.
+  * */
+  void chord(int y, int x) {
+    if (getState(y, x) != -1)
+      return;
+    int mines = getAdjacentMines(y, x);
+    if (mines == 0)
+      return;
+    int flags = 0;
+    for (int i = Math.max(y - 1, 0); i <= Math.min(y + 1, rows - 1); i++) {
+      for (int j = Math.max(x - 1, 0); j <= Math.min(x + 1, cols - 1); j++) {
+        if (getState(i, j) == 1)
+          flags++;
+      }
+    }
+    if (flags != mines)
+      return;
+    for (int i = Math.max(y - 1, 0); i <= Math.min(y + 1, rows - 1); i++) {
+      for (int j = Math.max(x - 1, 0); j <= Math.min(x + 1, cols - 1); j++) {
+        if (!GAME_LOST)
+          reveal(i, j);
+      }
+    }
+  }
+
+  /*
+  * Definitely reveal all bomb tiles, for when losing the game.
+  * Only allocated chunks are uncovered, on a large board the regions
+  * nobody has played stay hidden.
+  * */
   void lose() {
-    for (int i = 0; i < revealed.length; i++) {
-      for (int j = 0; j < revealed[0].length; j++) {
-        if (mines[i][j])
-          revealed[i][j] = -1;
+    for (int c = 0; c < chunks.length; c++) {
+      Chunk chunk = chunks[c];
+      if (chunk == null)
+        continue;
+      int top = (c / chunkCols) << CHUNK_BITS;
+      int left = (c % chunkCols) << CHUNK_BITS;
+      for (int row = 0; row < CHUNK; row++) {
+        long hidden = chunk.mines[row] & ~(chunk.low[row] & chunk.high[row]);
+        chunk.low[row] |= hidden;
+        chunk.high[row] |= hidden;
+        while (hidden != 0) {
+          recordChange((top + row) * cols + left + Long.numberOfTrailingZeros(hidden));
+          hidden &= hidden - 1;
+        }
       }
     }
   }
@@ -166,16 +507,22 @@ public final class MineSweeperBoard {
   //Convert the board state to a string.
   @Override
   public String toString() {
-    return String.valueOf(timeRemain) + ',' + (GAME_WON ? 't' : 'f') + ',' +
+    String result = String.valueOf(timeRemain) + ',' + (GAME_WON ? 't' : 'f') + ',' +
             (GAME_LOST ? 't' : 'f') + ',' + minesToString() + ',' + revealedToString();
+    if (seeded)
+      result += "," + seed + ',' + density;
+    return result;
   }
 
   //convert the mines board to a string.
   private String minesToString() {
-    StringBuilder result = new StringBuilder();
-    for (boolean[] mine : mines) {
-      for (int j = 0; j < mines[0].length; j++) {
-        result.append(mine[j] ? '1' : '0');
+    StringBuilder result = new StringBuilder(rows * (cols + 1));
+    long[][] band = null;
+    for (int i = 0; i < rows; i++) {
+      if ((i & (CHUNK - 1)) == 0)
+        band = getMineBand(i);
+      for (int j = 0; j < cols; j++) {
+        result.append(isMine(band, i, j) ? '1' : '0');
       }
       result.append(' ');
     }
@@ -184,10 +531,10 @@ public final class MineSweeperBoard {
 
   //convert the revealed board to a string.
   private String revealedToString() {
-    StringBuilder result = new StringBuilder();
-    for (byte[] bytes : revealed) {
-      for (int j = 0; j < revealed[0].length; j++) {
-        byte state = bytes[j];
+    StringBuilder result = new StringBuilder(rows * (cols + 1));
+    for (int i = 0; i < rows; i++) {
+      for (int j = 0; j < cols; j++) {
+        byte state = getState(i, j);
         switch (state) {
           case -1:
             result.append('_');
@@ -210,31 +557,114 @@ public final class MineSweeperBoard {
 
   //check if the current board state qualify for winning the game.
   boolean checkWinCon() {
-    for (byte i = 0; i < revealed.length; i++) {
-      for (byte j = 0; j < revealed[0].length; j++) {
-        if (revealed[i][j] >= 0 && !mines[i][j])
-          return false;
+    return hiddenSafe == 0;
+  }
+
+  private int chunkIndex(int y, int x) {
+    return (y >> CHUNK_BITS) * chunkCols + (x >> CHUNK_BITS);
+  }
+
+  private Chunk chunkAt(int y, int x) {
+    Chunk chunk = chunks[chunkIndex(y, x)];
+    if (chunk == null)
+      chunk = materialise(y >> CHUNK_BITS, x >> CHUNK_BITS);
+    return chunk;
+  }
+
+  //Allocate a chunk, lay its mines if the board is seeded and count the mines around each cell.
+  private Chunk materialise(int cy, int cx) {
+    Chunk chunk = new Chunk();
+    if (seeded)
+      layMines(cy, cx, chunk.mines);
+    chunks[cy * chunkCols + cx] = chunk;
+
+    //mine rows of this chunk and its eight neighbours, null where there are none
+    long[][] around = new long[9][];
+    for (int dy = -1; dy <= 1; dy++) {
+      for (int dx = -1; dx <= 1; dx++)
+        around[(dy + 1) * 3 + dx + 1] = mineRows(cy + dy, cx + dx);
+    }
+    int top = cy << CHUNK_BITS;
+    int left = cx << CHUNK_BITS;
+    for (int row = 0; row < CHUNK && top + row < rows; row++) {
+      for (int col = 0; col < CHUNK && left + col < cols; col++) {
+        int count = 0;
+        for (int i = row - 1; i <= row + 1; i++) {
+          for (int j = col - 1; j <= col + 1; j++) {
+            if (i == row && j == col)
+              continue;
+            long[] mines = around[(Math.floorDiv(i, CHUNK) + 1) * 3 + Math.floorDiv(j, CHUNK) + 1];
+            if (mines != null && (mines[i & (CHUNK - 1)] & (1L << j)) != 0)
+              count++;
+          }
+        }
+        chunk.counts[(row << CHUNK_BITS) | col] = (byte) count;
       }
     }
-    return true;
+    return chunk;
   }
 
-  //Count the number of mines surrounding this tile.
-  private int getMineCount(int y, int x) {
-    int numRows = mines.length;
-    int numCols = mines[0].length;
-    int count = 0;
-    for (int i = -1; i <= 1; i++) {
-      for (int j = -1; j <= 1; j++) {
-        if (!(i == 0 && j == 0) && isValid(y + i, x + j, numRows, numCols) && mines[y + i][x + j])
-          count++;
-      }
+  //Mine rows of a chunk without allocating it, null if it is off the board or has no mines.
+  private long[] mineRows(int cy, int cx) {
+    if (cy < 0 || cx < 0 || cx >= chunkCols || cy >= chunks.length / chunkCols)
+      return null;
+    Chunk chunk = chunks[cy * chunkCols + cx];
+    if (chunk != null)
+      return chunk.mines;
+    if (!seeded)
+      return null;
+    long[] mines = new long[CHUNK];
+    layMines(cy, cx, mines);
+    return mines;
+  }
+
+  //Number of mines a seeded chunk gets: its share of the density, rounded.
+  private int minesInChunk(int cy, int cx) {
+    int height = Math.min(CHUNK, rows - (cy << CHUNK_BITS));
+    int width = Math.min(CHUNK, cols - (cx << CHUNK_BITS));
+    return (int) Math.round(density * height * width);
+  }
+
+  /*
+  * Pick minesInChunk() distinct cells of the chunk with Floyd's sampling,
+  * using a random sequence that depends only on the seed and the chunk.
+  * */
+  private void layMines(int cy, int cx, long[] mines) {
+    int height = Math.min(CHUNK, rows - (cy << CHUNK_BITS));
+    int width = Math.min(CHUNK, cols - (cx << CHUNK_BITS));
+    int cells = height * width;
+    SplittableRandom random = new SplittableRandom(seed ^ (cy * 0x9E3779B97F4A7C15L) ^ (cx * 0xC2B2AE3D27D4EB4FL));
+    for (int j = cells - minesInChunk(cy, cx); j < cells; j++) {
+      int t = random.nextInt(j + 1);
+      if ((mines[t / width] & (1L << (t % width))) != 0)
+        t = j;
+      mines[t / width] |= 1L << (t % width);
     }
-    return count;
   }
 
-  //check if this tile is within boundary of the board.
-  private boolean isValid(int y, int x, int Y_AXIS, int X_AXIS) {
-    return y >= 0 && y < Y_AXIS && x >= 0 && x < X_AXIS;
+  /*
+  * A 64x64 block of cells, one long per row in each bit plane.
+  * Cell states are split over two planes:
+  * high low
+  *   0   0   hidden
+  *   0   1   hidden flagged
+  *   1   0   hidden flag crossed
+  *   1   1   revealed
+  * */
+  private static final class Chunk {
+    final long[] mines = new long[CHUNK];
+    final long[] low = new long[CHUNK];
+    final long[] high = new long[CHUNK];
+    //number of mines around each cell, row major
+    final byte[] counts = new byte[CHUNK * CHUNK];
+
+    Chunk copy() {
+      Chunk copy = new Chunk();
+      System.arraycopy(mines, 0, copy.mines, 0, CHUNK);
+      System.arraycopy(low, 0, copy.low, 0, CHUNK);
+      System.arraycopy(high, 0, copy.high, 0, CHUNK);
+      System.arraycopy(counts, 0, copy.counts, 0, counts.length);
+      return copy;
+    }
   }
 }
@@ -1,277 +1,704 @@
 package Server;
 
-import javax.swing.*;
 import java.io.*;
 import java.net.Socket;
 import java.sql.*;
 import java.util.*;
-import java.util.Timer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.locks.ReentrantLock;
 
 /*
 * This handler class communicates with the game client, performs all
 * game mechanics related actions and sends updated game state to client.
 * */
 public final class MineSweeperHandler implements Runnable{
+  //games listed by a plain WATCH
+  private static final int MAX_LISTED_GAMES = 100;
+  //writes replies that finish on the database writer, a blocking socket write must not hold it up
+  private static final ExecutorService replies = Executors.newCachedThreadPool(r -> {
+    Thread t = new Thread(r, "MineSweeper-reply");
+    t.setDaemon(true);
+    return t;
+  });
   final private Socket socket;
-  private final JTextArea output;
+  private final EventLog log;
   private final MineSweeperBoard board;
+  //guards board, a j.u.c lock so a blocked virtual thread does not pin its carrier
+  private final ReentrantLock boardLock = new ReentrantLock();
   private final int clientNo;
+  private final GameDatabase db;
+  private final ServerStats stats;
+  private final Leaderboard leaderboard;
+  private final SlotDirectory slots;
+  //live games by client number, for WATCH
+  private final Map<Integer, Spectators> games;
+  //connections watching this session's game, and the game this session watches
+  private final Spectators spectators;
+  private Spectators.Watcher watching;
   DataInputStream inputFromClient;
-  DataOutputStream outputToClient;
-  Connection conn;
+  MessageSink outputToClient;
+  //Protocol version negotiated with HELLO, changed only with boardLock held
+  private volatile int protocol = Protocol.TEXT;
+  //first slot of the save range this session sees as slots 1 to 5
+  private int firstSlot = SlotDirectory.SHARED;
+  //moves of the current game for the next save, guarded by boardLock
+  private MoveLog moves = new MoveLog(false);
 
-  private PreparedStatement getInfo, saveGame, loadGame, getScore, updateRank;
-  Timer timer = null;
+  //System.nanoTime() at which the current game runs out of time
+  private long deadline;
+  private ScheduledFuture<?> tick = null;
 
-  public MineSweeperHandler(Socket socket, int clientNo, JTextArea output) {
+  //last reply handed to the replies pool, the next one waits for it so they keep their order
+  private CompletableFuture<Void> lastReply = CompletableFuture.completedFuture(null);
+
+  //time spent in the database and bytes sent by the command being handled
+  private long dbNanos;
+  private long bytesOut;
+
+  public MineSweeperHandler(Socket socket, int clientNo, ServerContext context) {
+    this(socket, null, clientNo, context);
+  }
+
+  /*
+  * Handler driven by the selector front end. Messages are pushed in through
+  * handle() and replies go to the given sink instead of a socket stream.
+  * */
+  MineSweeperHandler(MessageSink sink, int clientNo, ServerContext context) {
+    this(null, sink, clientNo, context);
+  }
+
+  private MineSweeperHandler(Socket socket, MessageSink sink, int clientNo, ServerContext context) {
     this.socket = socket;
-    this.output = output;
+    this.outputToClient = sink;
+    this.log = context.log;
     this.clientNo = clientNo;
+    this.db = context.db;
+    this.stats = context.stats;
+    this.leaderboard = context.leaderboard;
+    this.slots = context.slots;
+    this.games = context.games;
     board = new MineSweeperBoard();
-
-    try {
-      conn = DriverManager.getConnection("jdbc:sqlite:resource/minesweeper.db");
-      getInfo = conn.prepareStatement("Select info from save where id < 6;");
-      saveGame = conn.prepareStatement("Update save Set info = ?, save = ? Where id = ?;");
-      loadGame = conn.prepareStatement("Select save from save where id = ?;");
-      getScore = conn.prepareStatement("Select name, score from scores where rank < 6;");
-      updateRank = conn.prepareStatement("Update scores Set name = ?, score = ? Where rank = ?;");
-    } catch (SQLException e) {
-      System.err.println("Connection error: " + e);
-      System.exit(1);
-    }
+    spectators = new Spectators(boardLock, v -> {
+      syncTime();
+      return Protocol.boardFrame(v, board);
+    }, this::rescheduleClock);
+    games.put(clientNo, spectators);
+    stats.sessionOpened();
   }
 
   /*
   * Commands from game clients:
-  * UPDATE: A request is made to interact with the game board.
-  * NEW:  Start a new game.
+  * UPDATE: A request is made to interact with the game board, "UPDATE b,y,x"
+  *   with b 0 to reveal, 1 to flag and 2 to chord: reveal around a number
+  *   that has as many flags next to it.
+  * MOVES: Several UPDATE operations at once, "MOVES b,y,x;b,y,x;...". They
+  *   are applied in order until the game ends, answered with one update.
+  *   One unknown or off the board move rejects the whole batch.
+  * NEW:  Start a new game, optionally "NEW rows,cols,density[,seed]".
   * GETLOAD:  Client wants to load game, asks the server to get info of saved games.
-  * LOADFROM: Client asks server to load the game state with the specified id.
+  * LOADFROM: Client asks server to load the game state with the specified id,
+  *   answered with ERROR if the slot is empty or its save cannot be read.
   * GETSAVE:  Client wants to save game, asks the server to get info of saved games.
-  * SAVETO: Client asks server to save current game state to the specified id slot.
+  * SAVETO: Client asks server to save current game state to the specified id slot,
+  *   answered with SAVED once the save is on disk.
+  * PLAYER: Use the named player's own save slots from now on, answered
+  *   with PLAYER and the name.
   * SCORE:  Retrieve top 5 scores for display.
+  * HELLO: Client asks to switch to a newer protocol version, see Protocol.
+  * RESYNC: Client lost track of the board and wants a full copy.
+  * STATS: Server statistics, per command latency, database time and traffic.
+  * WATCH: "WATCH <client>" follows another session's game, its board updates
+  *   and clock ticks are sent here until the next NEW, LOADFROM or WATCH.
+  *   A plain WATCH lists the games that can be watched.
   * EXIT: Client exited the session and disconnects from server.
+  * A client does not have to wait for a reply before sending the next
+  * command, commands are handled and answered in the order they arrive.
+  * A command that is rejected, unknown, malformed or for a cell off the
+  * board, is answered with ERROR.
   * */
   @Override
   public void run() {
 
     try {
       inputFromClient = new DataInputStream(socket.getInputStream());
-      outputToClient = new DataOutputStream(socket.getOutputStream());
+      outputToClient = new StreamSink(new DataOutputStream(socket.getOutputStream()));
 
-      label:
       while (true) {
-        String message = inputFromClient.readUTF();
-        String[] command = message.split(" ", 2);
-        String id = command[0];
-
-        switch (id) {
-          case "UPDATE":
-            String[] parameters = command[1].split(",");
-
-            byte y = Byte.parseByte(parameters[1]);
-            byte x = Byte.parseByte(parameters[2]);
-
-            synchronized (board) {
-              if (parameters[0].equals("0"))
-                board.reveal(y, x);
-              else if (parameters[0].equals("1"))
-                board.setFlag(y, x);
-              if ((!board.getGameWon()) && board.checkWinCon()) {
-                board.setGameWon();
-                checkHighScore();
-              }
-              outputToClient.writeUTF("BOARD\t" + board);
-            }
-            break;
-          case "NEW":
-            synchronized (board) {
-              board.copyBoard(new MineSweeperBoard());
-            }
-            if (timer == null) {
-              timer = new Timer();
-              timer.schedule(new Clock(), 1000, 1000);
-            }
-            outputToClient.writeUTF("BOARD\t" + board);
-            break;
-          case "GETLOAD":
-            PreparedStatement stld = getInfo;
-            ResultSet r = stld.executeQuery();
-            StringBuilder s = new StringBuilder();
-            while (r.next()) {
-              Object o = r.getObject(1);
-              s.append(o.toString()).append(",");
-            }
-            outputToClient.writeUTF("LOADINFO\t" + s);
-            r.close();
-            break;
-          case "LOADFROM":
-            PreparedStatement load = loadGame;
-            load.setInt(1, Integer.parseInt(command[1]));
-            ResultSet game = load.executeQuery();
-            game.next();
-            Object g = game.getObject(1);
-            MineSweeperBoard loadedBoard = null;
-            try {
-              loadedBoard = new MineSweeperBoard(g.toString());
-            } catch (Exception e) {
-              output.append("Client " + clientNo + " failed to load game from slot " + command[1] + "!");
-            }
-            synchronized (board) {
-              board.copyBoard(loadedBoard);
-            }
-            outputToClient.writeUTF("BOARD\t" + board);
-            game.close();
-            break;
-          case "GETSAVE":
-            PreparedStatement stmt = getInfo;
-            ResultSet rs = stmt.executeQuery();
-            StringBuilder sb = new StringBuilder();
-            while (rs.next()) {
-              Object o = rs.getObject(1);
-              sb.append(o.toString()).append(",");
-            }
-            outputToClient.writeUTF("SAVEINFO\t" + sb);
-            rs.close();
-            break;
-          case "SAVETO":
-            PreparedStatement save = saveGame;
-            save.setString(1, Calendar.getInstance().getTime().toString()
-                    + ' ' + board.getTimeRemain() + 's');
-            save.setString(2, board.toString());
-            save.setInt(3, Integer.parseInt(command[1]));
-            save.executeUpdate();
-            break;
-          case "SCORE":
-            PreparedStatement scores = getScore;
-            ResultSet ss = scores.executeQuery();
-            StringBuilder scoreString = new StringBuilder();
-            while (ss.next()) {
-              String o1 = ss.getObject(1).toString();
-              String o2 = ss.getObject(2).toString();
-              String separator = "";
-              for (int i = 0; i < 20 - o1.length() - o2.length(); i++)
-                separator += " ";
-              scoreString.append(o1).append(separator).append(o2).append(",");
-            }
-            outputToClient.writeUTF("SCORES\t" + scoreString);
-            ss.close();
-            break;
-          case "NAME":
-            PreparedStatement getScoreForUpdate = getScore;
-            ResultSet ss2 = getScoreForUpdate.executeQuery();
-            List<scoreRecord> rank = new ArrayList<>();
-            while (ss2.next()) {
-              String s1 = ss2.getObject(1).toString();
-              String s2 = ss2.getObject(2).toString();
-              rank.add(new scoreRecord(s1, Integer.parseInt(s2)));
-            }
-            String[] newRecord = command[1].split(",", 2);
-            rank.add(new scoreRecord(newRecord[0], Integer.parseInt(newRecord[1])));
-            rank.sort(Collections.reverseOrder());
-            for (int i = 0; i < 5; i++) {
-              scoreRecord sr = rank.get(i);
-              //System.out.println(sr.name + " " + sr.score);
-              updateRank.setString(1, sr.name);
-              updateRank.setInt(2, sr.score);
-              updateRank.setInt(3, i + 1);
-              updateRank.executeUpdate();
-            }
-            ss2.close();
-            break;
-          case "EXIT":
-            if (timer != null)
-              timer.cancel();
-            outputToClient.writeUTF("EXIT");
-            break label;
-        }
+        if (!handle(inputFromClient.readUTF()))
+          break;
       }
     } catch (IOException e) {
-      output.append("Client " + clientNo + " disconnected, session ending...");
+      log.append("Client " + clientNo + " disconnected, session ending...");
     } catch (SQLException se) {
-      output.append("Client " + clientNo + " failed SQL query");
+      log.append("Client " + clientNo + " failed SQL query");
+    } catch (RuntimeException re) {
+      log.append("Client " + clientNo + " session failed", re);
     }finally {
-      //getInfo, saveGame, loadGame, getScore, updateRank
+      close();
+    }
+  }
+
+  /*
+  * Process a single command from the game client.
+  * Returns false once the client has asked to end the session.
+  * */
+  boolean handle(String message) throws IOException, SQLException {
+    String[] command = message.split(" ", 2);
+    long start = System.nanoTime();
+    dbNanos = 0;
+    bytesOut = 0;
+    try {
+      return execute(command);
+    } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+      //missing or unparsable parameters, anything else is a bug and ends the session
+      log.append("Client " + clientNo + " sent an invalid command: " + e.getMessage());
+      sendText("ERROR\tInvalid command " + command[0]);
+      return true;
+    } finally {
+      //writeUTF length prefix plus the mostly ASCII message
+      stats.command(command[0]).record(System.nanoTime() - start, dbNanos, message.length() + 2, bytesOut);
+    }
+  }
+
+  private boolean execute(String[] command) throws IOException, SQLException {
+    String id = command[0];
+
+    switch (id) {
+      case "UPDATE":
+        String[] parameters = command[1].split(",");
+
+        int op = operation(parameters[0]);
+        int y = Integer.parseInt(parameters[1]);
+        int x = Integer.parseInt(parameters[2]);
+        String rejected = checkMove(op, parameters[0], y, x);
+        if (rejected != null) {
+          sendText("ERROR\t" + rejected);
+          break;
+        }
+
+        boardLock.lock();
+        try {
+          board.clearChanges();
+          move(op, y, x);
+          sendUpdate();
+        } finally {
+          boardLock.unlock();
+        }
+        break;
+      case "MOVES":
+        //check everything first so a bad move rejects the batch and leaves the board alone
+        String[] batch = command[1].split(";");
+        int[] ops = new int[batch.length * 3];
+        String invalid = null;
+        for (int i = 0; i < batch.length && invalid == null; i++) {
+          String[] part = batch[i].split(",");
+          ops[i * 3] = operation(part[0].trim());
+          ops[i * 3 + 1] = Integer.parseInt(part[1].trim());
+          ops[i * 3 + 2] = Integer.parseInt(part[2].trim());
+          invalid = checkMove(ops[i * 3], part[0].trim(), ops[i * 3 + 1], ops[i * 3 + 2]);
+        }
+        if (invalid != null) {
+          sendText("ERROR\t" + invalid);
+          break;
+        }
+        boardLock.lock();
+        try {
+          board.clearChanges();
+          for (int i = 0; i < ops.length && !board.getGameLost() && !board.getGameWon(); i += 3)
+            move(ops[i], ops[i + 1], ops[i + 2]);
+          sendUpdate();
+        } finally {
+          boardLock.unlock();
+        }
+        break;
+      case "NEW":
+        unwatch();
+        MineSweeperBoard newBoard;
+        try {
+          newBoard = newBoard(command.length > 1 ? command[1] : null);
+        } catch (IllegalArgumentException e) {
+          sendText("ERROR\t" + e.getMessage());
+          break;
+        }
+        boardLock.lock();
+        try {
+          board.copyBoard(newBoard);
+          moves = new MoveLog(true);
+          startClock();
+          publishBoard();
+        } finally {
+          boardLock.unlock();
+        }
+        break;
+      case "GETLOAD":
+        sendText("LOADINFO\t" + slots.list(firstSlot));
+        break;
+      case "LOADFROM":
+        int slot = saveSlot(command[1]);
+        if (slot < 0)
+          break;
+        if (!slots.isUsed(slot)) {
+          sendText("ERROR\tSave slot " + command[1] + " is empty");
+          break;
+        }
+        GameDatabase.SavedGame g = query(() -> db.loadGame(slot));
+        //decoded and replayed on a board of its own, a broken save leaves the session as it was
+        MineSweeperBoard loadedBoard;
+        try {
+          loadedBoard = SaveCodec.decode(g.save);
+          byte[] migrated = g.save instanceof String ? SaveCodec.encode(loadedBoard) : null;
+          MoveLog.replay(loadedBoard, g.moves);
+          if (migrated != null)
+            db.migrateLater(slot, (String) g.save, migrated,
+                    e -> log.append("Failed to convert save slot " + slot, e));
+        } catch (Exception e) {
+          log.append("Client " + clientNo + " failed to load game from slot " + command[1], e);
+          sendText("ERROR\tSave slot " + command[1] + " could not be loaded");
+          break;
+        }
+        unwatch();
+        boardLock.lock();
+        try {
+          board.copyBoard(loadedBoard);
+          moves = new MoveLog(false);
+          startClock();
+          publishBoard();
+        } finally {
+          boardLock.unlock();
+        }
+        break;
+      case "GETSAVE":
+        sendText("SAVEINFO\t" + slots.list(firstSlot));
+        break;
+      case "SAVETO":
+        int position = Integer.parseInt(command[1].trim());
+        int saveSlot = saveSlot(command[1]);
+        if (saveSlot < 0)
+          break;
+        boardLock.lock();
+        try {
+          syncTime();
+          String info = Calendar.getInstance().getTime().toString() + ' ' + board.getTimeRemain() + 's';
+          moves.add(MoveLog.TIME, board.getTimeRemain(), board.getGameLost() ? 1 : 0);
+          if (!slots.save(saveSlot, info, board, moves, e -> saved(position, saveSlot, info, e)))
+            sendText("ERROR\tToo many saves in progress, try again later");
+        } finally {
+          boardLock.unlock();
+        }
+        break;
+      case "PLAYER":
+        String player = command[1].trim();
+        if (player.isEmpty()) {
+          sendText("ERROR\tPlayer name is empty");
+          break;
+        }
+        firstSlot = query(() -> slots.firstSlot(player));
+        sendText("PLAYER\t" + player);
+        break;
+      case "SCORE":
+        StringBuilder scoreString = new StringBuilder();
+        for (GameDatabase.Score score : leaderboard.top()) {
+          String o1 = score.name;
+          String o2 = String.valueOf(score.score);
+          String separator = "";
+          for (int i = 0; i < 20 - o1.length() - o2.length(); i++)
+            separator += " ";
+          scoreString.append(o1).append(separator).append(o2).append(",");
+        }
+        sendText("SCORES\t" + scoreString);
+        break;
+      case "NAME":
+        String[] newRecord = command[1].split(",", 2);
+        leaderboard.submit(newRecord[0], Integer.parseInt(newRecord[1]));
+        break;
+      case "WATCH":
+        unwatch();
+        if (command.length < 2 || command[1].isBlank()) {
+          StringJoiner ids = new StringJoiner(",");
+          games.keySet().stream().filter(n -> n != clientNo).sorted().limit(MAX_LISTED_GAMES)
+                  .forEach(n -> ids.add(n.toString()));
+          sendText("GAMES\t" + ids);
+          break;
+        }
+        int watched = Integer.parseInt(command[1].trim());
+        Spectators game = watched == clientNo ? null : games.get(watched);
+        if (game == null) {
+          sendText("ERROR\tNo game " + watched + " to watch");
+          break;
+        }
+        boardLock.lock();
+        try {
+          stopClock();
+        } finally {
+          boardLock.unlock();
+        }
+        watching = game.add(outputToClient, protocol);
+        break;
+      case "HELLO":
+        unwatch();
+        int version;
+        try {
+          version = Integer.parseInt(command[1].trim());
+        } catch (NumberFormatException e) {
+          version = -1;
+        }
+        if (version < Protocol.TEXT || version > Protocol.LATEST) {
+          sendText("ERROR\tUnknown protocol version " + command[1].trim());
+          break;
+        }
+        boardLock.lock();
+        try {
+          sendText("HELLO\t" + version);
+          protocol = version;
+          rescheduleClock();
+        } finally {
+          boardLock.unlock();
+        }
+        break;
+      case "RESYNC":
+        boardLock.lock();
+        try {
+          syncTime();
+          sendBoard();
+        } finally {
+          boardLock.unlock();
+        }
+        break;
+      case "STATS":
+        sendText("STATS\t" + stats.report());
+        break;
+      case "EXIT":
+        unwatch();
+        boardLock.lock();
+        try {
+          stopClock();
+        } finally {
+          boardLock.unlock();
+        }
+        sendText("EXIT");
+        return false;
+      default:
+        sendText("ERROR\tUnknown command " + id);
+    }
+    return true;
+  }
+
+  private void sendText(String message) throws IOException {
+    send(Protocol.textFrame(protocol, message));
+  }
+
+  private void sendBoard() throws IOException {
+    send(Protocol.boardFrame(protocol, board));
+  }
+
+  //MoveLog operation of an UPDATE parameter, -1 for anything but reveal, flag or chord.
+  private static int operation(String op) {
+    switch (op) {
+      case "0":
+        return MoveLog.REVEAL;
+      case "1":
+        return MoveLog.FLAG;
+      case "2":
+        return MoveLog.CHORD;
+      default:
+        return -1;
+    }
+  }
+
+  //Save slot of a LOADFROM or SAVETO position, -1 once one out of range is answered with ERROR.
+  private int saveSlot(String position) throws IOException {
+    int p = Integer.parseInt(position.trim());
+    if (p < 1 || p > SlotDirectory.SLOTS) {
+      sendText("ERROR\tNo save slot " + p);
+      return -1;
+    }
+    return SlotDirectory.slot(firstSlot, p);
+  }
+
+  /*
+  * Why a move cannot be played, null if it can. The board only changes
+  * size on this session's own NEW or LOADFROM, so boardLock is not needed.
+  * */
+  private String checkMove(int op, String name, int y, int x) {
+    if (op < 0)
+      return "Unknown move " + name;
+    if (y < 0 || x < 0 || y >= board.getRows() || x >= board.getColumns())
+      return "Cell " + y + ',' + x + " is off the board";
+    return null;
+  }
+
+  /*
+  * Play one move that passed checkMove(), record it for the next save and
+  * end the game if it was won or lost. Must be called with boardLock held.
+  * */
+  private void move(int op, int y, int x) {
+    moves.add(op, y, x);
+    if (board.play(op, y, x)) {
+      stopClock();
+      checkHighScore();
+    }
+    if (board.getGameLost())
+      stopClock();
+  }
+
+  //Full board to the player and the spectators. Must be called with boardLock held.
+  private void publishBoard() throws IOException {
+    syncTime();
+    byte[] frame = Protocol.boardFrame(protocol, board);
+    spectators.publish(v -> v == Protocol.wireFormat(protocol) ? frame : Protocol.boardFrame(v, board));
+    send(frame);
+  }
+
+  //Stop receiving the game this session is watching, if any.
+  private void unwatch() {
+    if (watching != null) {
+      watching.stop();
+      watching = null;
+    }
+  }
+
+  //Replies of commands go through here so they are counted, the clock writes to the sink directly.
+  private void send(byte[] frame) throws IOException {
+    outputToClient.send(frame);
+    bytesOut += frame.length;
+  }
+
+  //Run a database call, adding its time to the current command.
+  private <T> T query(Query<T> query) throws SQLException {
+    long start = System.nanoTime();
+    try {
+      return query.run();
+    } finally {
+      dbNanos += System.nanoTime() - start;
+    }
+  }
+
+  /*
+  * Board for a NEW command: the classic 16x16 game, or the size, mine
+  * density and optional seed given as "rows,cols,density[,seed]".
+  * */
+  private MineSweeperBoard newBoard(String parameters) {
+    if (parameters == null || parameters.isBlank())
+      return new MineSweeperBoard();
+    String[] size = parameters.split(",");
+    if (size.length < 3 || size.length > 4)
+      throw new IllegalArgumentException("Expected NEW rows,cols,density[,seed]: " + parameters);
+    int rows = Integer.parseInt(size[0].trim());
+    int cols = Integer.parseInt(size[1].trim());
+    double density = Double.parseDouble(size[2].trim());
+    long seed = size.length > 3 ? Long.parseLong(size[3].trim()) : new SplittableRandom().nextLong();
+    if (protocol == Protocol.TEXT && !Protocol.fitsText(rows, cols))
+      throw new IllegalArgumentException("Board too large for the text protocol: " + rows + "x" + cols);
+    return new MineSweeperBoard(rows, cols, density, seed);
+  }
+
+  //Must be called with boardLock held, the spectators get the same update.
+  private void sendUpdate() throws IOException {
+    syncTime();
+    byte[] frame = updateFrame(protocol);
+    spectators.publish(v -> v == Protocol.wireFormat(protocol) ? frame : updateFrame(v));
+    send(frame);
+  }
+
+  //The cells changed by the last operation, or the full board when that is cheaper.
+  private byte[] updateFrame(int version) {
+    byte[] delta = Protocol.deltaFrame(version, board);
+    return delta != null ? delta : Protocol.boardFrame(version, board);
+  }
+
+  /*
+  * Runs on the database writer once a SAVETO is on disk or has failed.
+  * The reply is not part of the command being handled and is written on
+  * the replies pool: with the blocking servers a client that stops
+  * reading would otherwise stall every save behind this one.
+  * */
+  private void saved(int position, int slot, String info, SQLException error) {
+    if (error == null)
+      slots.saved(slot, info);
+    else
+      log.append("Client " + clientNo + " failed to save to slot " + slot, error);
+    byte[] frame = Protocol.textFrame(protocol, error == null ? "SAVED\t" + position : "ERROR\tSave failed");
+    synchronized (this) {
+      lastReply = lastReply.thenRunAsync(() -> {
+        try {
+          outputToClient.send(frame);
+        } catch (IOException e) {
+          //the client left, the save is kept anyway
+        }
+      }, replies);
+    }
+  }
+
+  //Stop the clock and release the socket held by this session.
+  void close() {
+    try {
+      log.append("Client " + clientNo + " disconnected");
+      stats.sessionClosed();
+      unwatch();
+      games.remove(clientNo, spectators);
+      boardLock.lock();
       try {
-        output.append("Client " + clientNo + " disconnected");
-        getInfo.close();
-        saveGame.close();
-        loadGame.close();
-        getScore.close();
-        updateRank.close();
-        conn.close();
-        socket.close();
-      } catch (IOException | SQLException e) {
-        e.printStackTrace();
+        stopClock();
+      } finally {
+        boardLock.unlock();
       }
+      spectators.close("ERROR\tGame " + clientNo + " has ended");
+      if (socket != null)
+        socket.close();
+    } catch (IOException e) {
+      log.append("Client " + clientNo + " failed to close", e);
     }
   }
 
   //check if current winning user's score is good enough to be top 5
   private void checkHighScore() {
-    PreparedStatement scores = getScore;
-    List<scoreRecord> list = new ArrayList<>();
-
     try {
-      ResultSet ss = scores.executeQuery();
-      while (ss.next()) {
-        String name = ss.getObject(1).toString();
-        int score = Integer.parseInt(ss.getObject(2).toString());
-        list.add(new scoreRecord(name, score));
-      }
-      Collections.sort(list);
-      if (board.getTimeRemain() > list.get(0).score) {
-        outputToClient.writeUTF("GETNAME");
-      }
-      ss.close();
-    } catch (SQLException | IOException se) {
-      se.printStackTrace();
+      if (leaderboard.qualifies(board.getTimeRemain()))
+        sendText("GETNAME");
+    } catch (IOException e) {
+      log.append("Client " + clientNo + " failed high score check", e);
+    }
+  }
+
+  /*
+  * Start counting down the current board from its remaining time.
+  * Must be called with boardLock held.
+  * */
+  private void startClock() {
+    cancelTick();
+    if (board.getTimeRemain() <= 0 || board.getGameLost() || board.getGameWon())
+      return;
+    deadline = System.nanoTime() + board.getTimeRemain() * GameClock.SECOND;
+    new Clock().schedule();
+  }
+
+  //Stop the countdown, the board keeps the time that was left. Must be called with boardLock held.
+  private void stopClock() {
+    syncTime();
+    cancelTick();
+  }
+
+  private void cancelTick() {
+    if (tick != null) {
+      tick.cancel(false);
+      tick = null;
     }
   }
 
   /*
-  * clock that decrease time remain on the current game every second
+  * Bring the board's time up to date while the clock runs. Between ticks
+  * it is only read from the deadline when it is sent or saved. Must be
+  * called with boardLock held.
   * */
-  private class Clock extends TimerTask {
+  private void syncTime() {
+    if (tick != null)
+      board.setTimeRemain(GameClock.secondsUntil(deadline));
+  }
+
+  //Pick the next tick again after the player or a watcher changed how often they need one.
+  private void rescheduleClock() {
+    if (tick != null) {
+      cancelTick();
+      new Clock().schedule();
+    }
+  }
+
+  /*
+  * clock that updates the time remaining on the current game. It ticks
+  * every second while the player or a watcher needs TIME that often, and
+  * otherwise only every Protocol.CORRECTION_SECONDS and when time is up.
+  * Each tick reads the time from the deadline and schedules the next one,
+  * so a late tick does not push back the following ones.
+  * */
+  private class Clock implements Runnable {
+    //System.nanoTime() the next tick is due at
+    private long due;
+    //this clock's pending tick, a tick that is no longer the session's does nothing
+    private ScheduledFuture<?> scheduled;
+
+    //Must be called with boardLock held.
+    void schedule() {
+      long delay = GameClock.nanosToNextSecond(deadline);
+      if (protocol >= Protocol.COUNTDOWN && !spectators.needTicks()) {
+        //skip the seconds the client counts down itself
+        int time = GameClock.secondsUntil(deadline);
+        delay += (Math.min(time, Protocol.CORRECTION_SECONDS) - 1) * GameClock.SECOND;
+      }
+      due = System.nanoTime() + delay;
+      tick = scheduled = GameClock.schedule(this, delay);
+    }
+
     @Override
     public void run() {
-      if (board.getTimeRemain() <= 0 || board.getGameLost() || board.getGameWon())
-        return;
-      synchronized (board) {
-        board.decrementTime();
-        int time = board.getTimeRemain();
+      long start = System.nanoTime();
+      long sent = 0;
+      boardLock.lock();
+      try {
+        //a move may have read the time as 0 already, the tick still ends the game
+        if (tick != scheduled || board.getGameLost() || board.getGameWon())
+          return;
+        stats.tickLag(start - due);
+        int time = GameClock.secondsUntil(deadline);
+        board.setTimeRemain(time);
         if (time <= 0) {
+          tick = null;
+          board.clearChanges();
           board.setGameLost();
+          moves.add(MoveLog.TIME, 0, 1);
           try {
-            outputToClient.writeUTF("BOARD\t" + board);
+            byte[] frame = updateFrame(protocol);
+            spectators.publish(v -> v == Protocol.wireFormat(protocol) ? frame : updateFrame(v));
+            outputToClient.send(frame);
+            sent = frame.length;
           } catch (IOException e) {
-            System.out.println("Client " + clientNo + " disconnected, session ending...");
+            log.append("Client " + clientNo + " disconnected, session ending...");
           }
           return;
         }
         try {
-          outputToClient.writeUTF("TIME\t" + time);
+          byte[] frame = Protocol.textFrame(protocol, "TIME\t" + time);
+          spectators.publish(v -> v == Protocol.wireFormat(protocol) ? frame : Protocol.textFrame(v, "TIME\t" + time));
+          outputToClient.send(frame);
+          sent = frame.length;
+          schedule();
         } catch (IOException e) {
-          timer.cancel();
+          tick = null;
         }
+      } finally {
+        boardLock.unlock();
+        stats.command("TIME").record(System.nanoTime() - start, 0, 0, sent);
       }
     }
   }
 
-  //Class used for comparing and sorting top scores.
-  private static class scoreRecord implements Comparable<scoreRecord>{
-    String name;
-    int score;
+  private interface Query<T> {
+    T run() throws SQLException;
+  }
+
+  /*
+  * Writes each frame to the client socket.
+  * The clock and the session thread both write, the lock keeps frames whole.
+  * */
+  private static class StreamSink implements MessageSink {
+    private final DataOutputStream out;
+    private final ReentrantLock lock = new ReentrantLock();
 
-    scoreRecord (String name, int score) {
-      this.name = name;
-      this.score = score;
+    StreamSink(DataOutputStream out) {
+      this.out = out;
     }
 
     @Override
-    public int compareTo(scoreRecord o) {
-      return this.score - o.score;
+    public void send(byte[] frame) throws IOException {
+      lock.lock();
+      try {
+        out.write(frame);
+        out.flush();
+      } finally {
+        lock.unlock();
+      }
     }
   }
 }
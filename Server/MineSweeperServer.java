@@ -1,57 +1,143 @@
 package Server;
 
+import javax.management.JMException;
 import javax.swing.*;
+import java.awt.GraphicsEnvironment;
 import java.io.*;
 import java.net.*;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadPoolExecutor;
 
-public final class MineSweeperServer extends JFrame implements Runnable {
+public final class MineSweeperServer implements Runnable {
 
   private int clientNo = 0;
-  JTextArea ta;
-
-  public MineSweeperServer() {
-    ta = new JTextArea(10,10);
-    JScrollPane sp = new JScrollPane(ta);
-    this.add(sp);
-    this.setTitle("MultiThreadServer");
-    this.setSize(400,200);
-    setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
-    Thread t = new Thread(this);
-    t.start();
+  private final EventLog log;
+  private ServerContext context;
+
+  public MineSweeperServer(EventLog log) {
+    this.log = log;
   }
 
+  /*
+  * The server mode is picked with -Dminesweeper.server=<mode>:
+  * nio:  (default) selector front end, sessions share a small worker pool.
+  * pool: one blocking thread per client from a fixed size pool.
+  * virtual: one blocking virtual thread per client, no upper limit.
+  * */
   @Override
   public void run() {
+    GameDatabase db = null;
+    ServerStats stats = new ServerStats();
+    try {
+      db = new GameDatabase("jdbc:sqlite:resource/minesweeper.db", 4);
+      context = new ServerContext(log, db, stats, new Leaderboard(db, log), new SlotDirectory(db));
+    } catch (SQLException e) {
+      log.append("Connection error", e);
+      System.exit(1);
+    }
+    //lets the writer finish queued score updates
+    Runtime.getRuntime().addShutdownHook(new Thread(db::close));
+    try {
+      stats.register();
+    } catch (JMException e) {
+      log.append("Statistics are not available over JMX", e);
+    }
+
+    String mode = System.getProperty("minesweeper.server", "nio");
+    if (mode.equals("pool")) {
+      int MAX_CLIENT_ALLOWED = 5;
+      runBlocking(Executors.newFixedThreadPool(MAX_CLIENT_ALLOWED));
+    }
+    else if (mode.equals("virtual"))
+      runBlocking(newVirtualThreadExecutor());
+    else {
+      int cpus = Runtime.getRuntime().availableProcessors();
+      new NioServer(8000, Math.max(1, cpus / 4), cpus, context).run();
+    }
+  }
 
-    int MAX_CLIENT_ALLOWED = 5;
-    ThreadPoolExecutor executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(MAX_CLIENT_ALLOWED);
+  private void runBlocking(ExecutorService executor) {
     try {
       int port = 8000;
       ServerSocket serverSocket = new ServerSocket(port);
-      ta.append("MineSweeperServer started at " + new Date() + '\n');
+      log.append("MineSweeperServer started at " + new Date());
 
       while (true) {
         Socket socket = serverSocket.accept();
         clientNo++;
         InetAddress inetAddress = socket.getInetAddress();
-        ta.append("Starting thread for client " + clientNo + ", ip address: "
-                + inetAddress.getHostAddress() + '\n');
+        log.append("Starting thread for client " + clientNo + ", ip address: "
+                + inetAddress.getHostAddress());
 
-        MineSweeperHandler task = new MineSweeperHandler(socket, clientNo, ta);
+        MineSweeperHandler task = new MineSweeperHandler(socket, clientNo, context);
         executor.execute(task);
       }
     } catch(IOException ie) {
-      ie.printStackTrace();
+      log.append("Server socket failed", ie);
     } finally {
       executor.shutdown();
     }
   }
 
+  /*
+  * Virtual threads need Java 21, the project still builds for older JDKs,
+  * so the executor is looked up at runtime. Without it every session gets
+  * its own platform thread instead.
+  * */
+  private ExecutorService newVirtualThreadExecutor() {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      log.append("Virtual threads are not supported by this JVM, using a thread per client");
+      return Executors.newCachedThreadPool();
+    }
+  }
+
+  /*
+  * The log goes to the sinks listed in -Dminesweeper.log=<sink>,<sink>...:
+  * swing:  (default) the server window.
+  * stdout: standard output, the default when there is no display.
+  * file: rolling file set by -Dminesweeper.logfile, log/minesweeper.log by default.
+  * */
   public static void main(String[] args) {
-    MineSweeperServer ms = new MineSweeperServer();
-    ms.setVisible(true);
+    String defaultSinks = GraphicsEnvironment.isHeadless() ? "stdout" : "swing";
+    List<EventLog.Sink> sinks = new ArrayList<>();
+    for (String sink : System.getProperty("minesweeper.log", defaultSinks).split(",")) {
+      switch (sink.trim()) {
+        case "swing":
+          sinks.add(new EventLog.SwingSink(showWindow(), 1000));
+          break;
+        case "stdout":
+          sinks.add(new EventLog.StdoutSink());
+          break;
+        case "file":
+          String file = System.getProperty("minesweeper.logfile", "log/minesweeper.log");
+          try {
+            sinks.add(new EventLog.FileSink(Paths.get(file), 1 << 20, 5));
+          } catch (IOException e) {
+            System.err.println("Cannot open log file " + file + ": " + e);
+          }
+          break;
+      }
+    }
+    EventLog log = new EventLog(4096, sinks);
+    Runtime.getRuntime().addShutdownHook(new Thread(log::close));
+    new Thread(new MineSweeperServer(log)).start();
+  }
+
+  //Server window, only shows the event log.
+  private static JTextArea showWindow() {
+    JTextArea ta = new JTextArea(10,10);
+    JFrame frame = new JFrame("MultiThreadServer");
+    frame.add(new JScrollPane(ta));
+    frame.setSize(400,200);
+    frame.setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
+    frame.setVisible(true);
+    return ta;
   }
 }
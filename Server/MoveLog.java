@@ -0,0 +1,111 @@
+package Server;
+
+import java.util.Arrays;
+
+/*
+* Moves of a session's current game, so a save can be written as a snapshot
+* plus the moves played after it, and replayed when the game is loaded.
+*
+* Every entry is three ints: op, y, x. REVEAL, FLAG and CHORD are the
+* UPDATE operations, TIME is added at each save with the remaining seconds in y
+* and x set to 1 if the clock had run out.
+*
+* The log also remembers which slot holds this game and how much of the
+* log is already there, see SlotDirectory.save(). Only moves that can
+* still be written are kept, at most COMPACT_AFTER entries.
+* */
+final class MoveLog {
+  static final int REVEAL = 0, FLAG = 1, TIME = 2, CHORD = 3;
+  //a slot log longer than this is replaced by a fresh snapshot
+  static final int COMPACT_AFTER = 256;
+
+  private int[] entries = new int[3 * 16];
+  private int size = 0;
+  //true while the log holds every move since the board was generated
+  private boolean fromStart;
+
+  //slot holding this game, 0 if none, with the slot's generation and log length
+  private int slot = 0;
+  private int generation;
+  private int slotLength;
+  //entries of this log the slot already has
+  private int stored;
+
+  MoveLog(boolean fromStart) {
+    this.fromStart = fromStart;
+  }
+
+  void add(int op, int y, int x) {
+    //not held by a slot and not replayable from the start, the next save is a snapshot of the board
+    if (!fromStart && slot == 0)
+      return;
+    if (size == entries.length)
+      entries = Arrays.copyOf(entries, size * 2);
+    entries[size++] = op;
+    entries[size++] = y;
+    entries[size++] = x;
+    if (length() > COMPACT_AFTER) {
+      //too long to replay from the start, keep only what the slot is missing
+      if (fromStart) {
+        fromStart = false;
+        System.arraycopy(entries, stored * 3, entries, 0, size - stored * 3);
+        size -= stored * 3;
+        stored = 0;
+      }
+      //and once that is too long as well the slot gets a snapshot
+      if (slot == 0 || length() > COMPACT_AFTER) {
+        size = 0;
+        slot = 0;
+      }
+    }
+  }
+
+  //Number of entries.
+  int length() {
+    return size / 3;
+  }
+
+  boolean isFromStart() {
+    return fromStart;
+  }
+
+  //Entries from, inclusive, to to, exclusive, three ints each.
+  int[] entries(int from, int to) {
+    return Arrays.copyOfRange(entries, from * 3, to * 3);
+  }
+
+  //First entry the slot is missing, or -1 if the slot does not hold this game's log.
+  int appendFrom(int slot, int generation, int slotLength) {
+    if (this.slot != slot || this.generation != generation || this.slotLength != slotLength)
+      return -1;
+    return stored;
+  }
+
+  //The slot now holds everything in this log.
+  void storedIn(int slot, int generation, int slotLength) {
+    this.slot = slot;
+    this.generation = generation;
+    this.slotLength = slotLength;
+    //older entries can only be needed for a snapshot from the start
+    if (!fromStart) {
+      size = 0;
+      stored = 0;
+    }
+    else
+      stored = length();
+  }
+
+  //Apply a log to a board parsed from its snapshot.
+  static void replay(MineSweeperBoard board, int[] moves) {
+    for (int i = 0; i < moves.length; i += 3) {
+      int op = moves[i], y = moves[i + 1], x = moves[i + 2];
+      if (op == TIME) {
+        board.setTimeRemain(y);
+        if (x == 1 && !board.getGameWon() && !board.getGameLost())
+          board.setGameLost();
+      }
+      else
+        board.play(op, y, x);
+    }
+  }
+}
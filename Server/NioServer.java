@@ -0,0 +1,292 @@
+package Server;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+* Selector based front end for the game server.
+*
+* One acceptor thread hands new connections round robin to a few I/O loops.
+* Each I/O loop multiplexes its sockets on a Selector, cuts the incoming
+* byte stream into writeUTF frames and queues them on the session. Game
+* logic runs on a small worker pool sized to the number of CPUs, and a
+* session never has more than one worker processing its messages, so
+* commands are still handled in the order the client sent them.
+* */
+final class NioServer implements Runnable {
+  //initial read buffer of a session, enough for the commands a client sends
+  private static final int READ_BUFFER = 256;
+
+  private final int port;
+  private final EventLog log;
+  private final ServerContext context;
+  private final IoLoop[] loops;
+  private final ExecutorService workers;
+  private int clientNo = 0;
+
+  NioServer(int port, int ioThreads, int workerThreads, ServerContext context) {
+    this.port = port;
+    this.log = context.log;
+    this.context = context;
+    this.loops = new IoLoop[ioThreads];
+    this.workers = Executors.newFixedThreadPool(workerThreads);
+  }
+
+  @Override
+  public void run() {
+    try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+      serverChannel.bind(new InetSocketAddress(port));
+      for (int i = 0; i < loops.length; i++) {
+        loops[i] = new IoLoop();
+        Thread t = new Thread(loops[i], "MineSweeper-io-" + i);
+        t.setDaemon(true);
+        t.start();
+      }
+      log.append("MineSweeperServer started at " + new java.util.Date());
+
+      //accept stays blocking, only the established connections are multiplexed
+      while (true) {
+        SocketChannel channel = serverChannel.accept();
+        clientNo++;
+        log.append("Starting session for client " + clientNo + ", ip address: "
+                + channel.socket().getInetAddress().getHostAddress());
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        loops[clientNo % loops.length].register(channel, clientNo);
+      }
+    } catch (IOException ie) {
+      log.append("Server socket failed", ie);
+    } finally {
+      workers.shutdown();
+    }
+  }
+
+  /*
+  * A single selector thread serving many connections.
+  * Other threads only talk to it through the pending queues and wakeup().
+  * */
+  private final class IoLoop implements Runnable {
+    private final Selector selector;
+    private final Queue<Session> registrations = new ConcurrentLinkedQueue<>();
+    private final Queue<Session> pendingWrites = new ConcurrentLinkedQueue<>();
+
+    IoLoop() throws IOException {
+      selector = Selector.open();
+    }
+
+    void register(SocketChannel channel, int clientNo) {
+      registrations.add(new Session(this, channel, clientNo));
+      selector.wakeup();
+    }
+
+    void requestWrite(Session session) {
+      pendingWrites.add(session);
+      selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+      while (true) {
+        try {
+          selector.select();
+          Session session;
+          while ((session = registrations.poll()) != null) {
+            session.key = session.channel.register(selector, SelectionKey.OP_READ, session);
+            session.flush();
+          }
+          while ((session = pendingWrites.poll()) != null)
+            session.flush();
+
+          Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+          while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            Session s = (Session) key.attachment();
+            if (!key.isValid())
+              continue;
+            if (key.isReadable())
+              s.read();
+            if (key.isValid() && key.isWritable())
+              s.flush();
+          }
+        } catch (IOException e) {
+          log.append("I/O loop error", e);
+        }
+      }
+    }
+  }
+
+  /*
+  * Per connection state: the partially read frame, queued replies and the
+  * commands waiting for a worker.
+  * */
+  private final class Session implements MessageSink {
+    private final IoLoop loop;
+    private final SocketChannel channel;
+    private final int clientNo;
+    private final MineSweeperHandler handler;
+    //commands are short, the buffer grows when a frame's length prefix asks for more
+    private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER);
+    private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+    //bytes in writeQueue
+    private final AtomicLong unsent = new AtomicLong();
+    private final Queue<String> inbox = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private volatile boolean closing = false;
+    private volatile boolean closed = false;
+    SelectionKey key;
+
+    Session(IoLoop loop, SocketChannel channel, int clientNo) {
+      this.loop = loop;
+      this.channel = channel;
+      this.clientNo = clientNo;
+      this.handler = new MineSweeperHandler(this, clientNo, context);
+    }
+
+    //Called on the I/O thread when the channel has data.
+    void read() {
+      int n;
+      try {
+        n = channel.read(readBuffer);
+      } catch (IOException e) {
+        n = -1;
+      }
+      if (n < 0) {
+        log.append("Client " + clientNo + " disconnected, session ending...");
+        close();
+        return;
+      }
+
+      readBuffer.flip();
+      while (readBuffer.remaining() >= 2) {
+        int length = readBuffer.getShort(readBuffer.position()) & 0xFFFF;
+        if (readBuffer.remaining() < 2 + length)
+          break;
+        byte[] frame = new byte[2 + length];
+        readBuffer.get(frame);
+        try {
+          inbox.add(new DataInputStream(new ByteArrayInputStream(frame)).readUTF());
+        } catch (IOException e) {
+          log.append("Client " + clientNo + " sent a malformed message");
+        }
+      }
+      //a frame longer than the buffer, writeUTF frames are at most 2 + 65535 bytes
+      int needed = readBuffer.remaining() >= 2 ? 2 + (readBuffer.getShort(readBuffer.position()) & 0xFFFF) : 0;
+      if (needed > readBuffer.capacity())
+        readBuffer = ByteBuffer.allocate(needed).put(readBuffer);
+      else
+        readBuffer.compact();
+      schedule();
+    }
+
+    //Make sure exactly one worker is draining this session's inbox.
+    private void schedule() {
+      if (!inbox.isEmpty() && !closing && scheduled.compareAndSet(false, true))
+        workers.execute(this::process);
+    }
+
+    //Runs on a worker thread.
+    private void process() {
+      synchronized (handler) {
+        drain();
+      }
+      schedule();
+    }
+
+    private void drain() {
+      String message;
+      try {
+        while (!closing && (message = inbox.poll()) != null) {
+          if (!handler.handle(message)) {
+            closing = true;
+            loop.requestWrite(this);
+          }
+        }
+      } catch (IOException e) {
+        log.append("Client " + clientNo + " disconnected, session ending...");
+        closing = true;
+        loop.requestWrite(this);
+      } catch (SQLException se) {
+        log.append("Client " + clientNo + " failed SQL query");
+        closing = true;
+        loop.requestWrite(this);
+      } catch (RuntimeException re) {
+        log.append("Client " + clientNo + " session failed", re);
+        closing = true;
+        loop.requestWrite(this);
+      } finally {
+        scheduled.set(false);
+      }
+    }
+
+    @Override
+    public void send(byte[] frame) throws IOException {
+      if (closed)
+        throw new IOException("Session closed");
+      unsent.addAndGet(frame.length);
+      writeQueue.add(ByteBuffer.wrap(frame));
+      loop.requestWrite(this);
+    }
+
+    @Override
+    public long unsent() {
+      return unsent.get();
+    }
+
+    //Called on the I/O thread, writes as much of the queue as the socket takes.
+    void flush() {
+      if (closed || key == null)
+        return;
+      try {
+        ByteBuffer buffer;
+        while ((buffer = writeQueue.peek()) != null) {
+          unsent.addAndGet(-channel.write(buffer));
+          if (buffer.hasRemaining())
+            break;
+          writeQueue.poll();
+        }
+      } catch (IOException e) {
+        close();
+        return;
+      }
+      if (writeQueue.isEmpty()) {
+        if (closing)
+          close();
+        else
+          key.interestOps(SelectionKey.OP_READ);
+      }
+      else
+        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    //Called on the I/O thread. Database cleanup is left to a worker.
+    private void close() {
+      if (closed)
+        return;
+      closed = true;
+      closing = true;
+      if (key != null)
+        key.cancel();
+      try {
+        channel.close();
+      } catch (IOException e) {
+        log.append("Client " + clientNo + " failed to close", e);
+      }
+      workers.execute(() -> {
+        synchronized (handler) {
+          handler.close();
+        }
+      });
+    }
+  }
+}
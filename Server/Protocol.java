@@ -0,0 +1,224 @@
+package Server;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/*
+* Wire formats spoken between server and client.
+*
+* TEXT (version 1): every message is a DataOutputStream.writeUTF string,
+*   boards are sent as "BOARD\t" + MineSweeperBoard.toString().
+* BINARY (version 2): a client opts in by sending "HELLO 2", the server
+*   answers "HELLO\t2" in text and sends binary frames from then on.
+*   A version other than TEXT to LATEST is answered with ERROR and the
+*   session keeps the version it had. Binary frames are:
+*     int length, byte opcode, length - 1 bytes of payload
+*   OP_TEXT carries a UTF-8 text message, OP_BOARD a packed board:
+*     short rows, short cols, int timeRemain, byte flags (1 won, 2 lost),
+*     int mine count, mine bitmap with one bit per cell, cell states with
+*     two bits per cell.
+*   Cells are in row major order, starting from the low bits of each byte.
+*   OP_DELTA carries only the cells changed by the last operation:
+*     int timeRemain, byte flags, int count, count times (int cell, byte state)
+*   with cell = y * cols + x. A full OP_BOARD is sent instead whenever it
+*   would be smaller, and after NEW, LOADFROM or a RESYNC request.
+* COUNTDOWN (version 3): the frames of version 2, but the client runs the
+*   countdown itself from the time in each board and delta. "TIME\t" is
+*   only sent every CORRECTION_SECONDS to correct drift, and is exact at
+*   the moment it is sent, the others are rounded up to whole seconds.
+*   Earlier versions get TIME every second.
+* Messages from the client to the server are always writeUTF strings.
+* */
+public final class Protocol {
+  public static final int TEXT = 1;
+  public static final int BINARY = 2;
+  public static final int COUNTDOWN = 3;
+  public static final int LATEST = COUNTDOWN;
+  //seconds between TIME messages to a COUNTDOWN client
+  static final int CORRECTION_SECONDS = 10;
+
+  public static final byte OP_TEXT = 0;
+  public static final byte OP_BOARD = 1;
+  public static final byte OP_DELTA = 2;
+
+  //two bit cell states used by the binary board encoding
+  private static final int HIDDEN = 0, FLAGGED = 1, CROSSED = 2, REVEALED = 3;
+  private static final int BOARD_HEADER = 13;
+
+  private Protocol() {}
+
+  //Version whose frames a client of the given version reads, later versions only change what is sent.
+  static int wireFormat(int version) {
+    return Math.min(version, BINARY);
+  }
+
+  //True if a "BOARD" text message for this size fits in one writeUTF string.
+  static boolean fitsText(int rows, int cols) {
+    //two characters per cell and a separator per row, plus the header fields
+    return 2L * rows * (cols + 1) + 64 <= 65535;
+  }
+
+  //Frame carrying a plain text message.
+  static byte[] textFrame(int version, String message) {
+    if (version == TEXT)
+      return utfFrame(message);
+    return binaryFrame(OP_TEXT, message.getBytes(StandardCharsets.UTF_8));
+  }
+
+  //Frame carrying the full state of the board.
+  static byte[] boardFrame(int version, MineSweeperBoard board) {
+    if (version == TEXT)
+      return utfFrame("BOARD\t" + board);
+    return binaryFrame(OP_BOARD, encodeBoard(board));
+  }
+
+  /*
+  * Frame carrying the cells changed since the board's last clearChanges(),
+  * or null when the client has to get a full board instead.
+  * */
+  static byte[] deltaFrame(int version, MineSweeperBoard board) {
+    if (version < BINARY)
+      return null;
+    int count = board.getChangeCount();
+    int cols = board.getColumns();
+    int cells = board.getRows() * cols;
+    int length = 9 + count * 5;
+    if (length >= BOARD_HEADER + (cells + 7) / 8 + (cells + 3) / 4)
+      return null;
+
+    byte[] payload = new byte[length];
+    writeInt(payload, 0, board.getTimeRemain());
+    payload[4] = (byte) ((board.getGameWon() ? 1 : 0) | (board.getGameLost() ? 2 : 0));
+    writeInt(payload, 5, count);
+    for (int i = 0; i < count; i++) {
+      int cell = board.getChange(i);
+      writeInt(payload, 9 + i * 5, cell);
+      payload[13 + i * 5] = (byte) toBits(board.getState(cell / cols, cell % cols));
+    }
+    return binaryFrame(OP_DELTA, payload);
+  }
+
+  /*
+  * Apply an OP_DELTA payload to the board it was computed against.
+  * Returns the indexes of the cells that changed.
+  * */
+  public static int[] applyDelta(MineSweeperBoard board, byte[] payload) {
+    board.setTimeRemain(readInt(payload, 0));
+    board.setResult((payload[4] & 1) != 0, (payload[4] & 2) != 0);
+    int[] cells = new int[readInt(payload, 5)];
+    for (int i = 0; i < cells.length; i++) {
+      cells[i] = readInt(payload, 9 + i * 5);
+      board.setCell(cells[i], fromBits(payload[13 + i * 5]));
+    }
+    return cells;
+  }
+
+  public static byte[] encodeBoard(MineSweeperBoard board) {
+    int rows = board.getRows();
+    int cols = board.getColumns();
+    int cells = rows * cols;
+    int mineBytes = (cells + 7) / 8;
+    byte[] payload = new byte[BOARD_HEADER + mineBytes + (cells + 3) / 4];
+
+    payload[0] = (byte) (rows >> 8);
+    payload[1] = (byte) rows;
+    payload[2] = (byte) (cols >> 8);
+    payload[3] = (byte) cols;
+    writeInt(payload, 4, board.getTimeRemain());
+    payload[8] = (byte) ((board.getGameWon() ? 1 : 0) | (board.getGameLost() ? 2 : 0));
+    writeInt(payload, 9, board.getMineCount());
+
+    int states = BOARD_HEADER + mineBytes;
+    int cell = 0;
+    long[][] band = null;
+    for (int i = 0; i < rows; i++) {
+      if (i % MineSweeperBoard.CHUNK == 0)
+        band = board.getMineBand(i);
+      for (int j = 0; j < cols; j++, cell++) {
+        if (MineSweeperBoard.isMine(band, i, j))
+          payload[BOARD_HEADER + (cell >> 3)] |= 1 << (cell & 7);
+        payload[states + (cell >> 2)] |= toBits(board.getState(i, j)) << ((cell & 3) << 1);
+      }
+    }
+    return payload;
+  }
+
+  public static MineSweeperBoard decodeBoard(byte[] payload) {
+    int rows = ((payload[0] & 0xFF) << 8) | (payload[1] & 0xFF);
+    int cols = ((payload[2] & 0xFF) << 8) | (payload[3] & 0xFF);
+    int time = readInt(payload, 4);
+    boolean won = (payload[8] & 1) != 0;
+    boolean lost = (payload[8] & 2) != 0;
+
+    MineSweeperBoard board = new MineSweeperBoard(rows, cols, time, won, lost);
+    int states = BOARD_HEADER + (rows * cols + 7) / 8;
+    int cell = 0;
+    for (int i = 0; i < rows; i++) {
+      for (int j = 0; j < cols; j++, cell++) {
+        if ((payload[BOARD_HEADER + (cell >> 3)] & (1 << (cell & 7))) != 0)
+          board.setMine(i, j);
+        board.setCell(cell, fromBits((payload[states + (cell >> 2)] >> ((cell & 3) << 1)) & 3));
+      }
+    }
+    board.setMineCount(readInt(payload, 9));
+    board.clearChanges();
+    return board;
+  }
+
+  private static int toBits(byte state) {
+    switch (state) {
+      case -1:
+        return REVEALED;
+      case 1:
+        return FLAGGED;
+      case 2:
+        return CROSSED;
+      default:
+        return HIDDEN;
+    }
+  }
+
+  private static byte fromBits(int bits) {
+    switch (bits) {
+      case REVEALED:
+        return -1;
+      case FLAGGED:
+        return 1;
+      case CROSSED:
+        return 2;
+      default:
+        return 0;
+    }
+  }
+
+  private static byte[] binaryFrame(byte opcode, byte[] payload) {
+    byte[] frame = new byte[5 + payload.length];
+    writeInt(frame, 0, payload.length + 1);
+    frame[4] = opcode;
+    System.arraycopy(payload, 0, frame, 5, payload.length);
+    return frame;
+  }
+
+  private static void writeInt(byte[] bytes, int offset, int value) {
+    bytes[offset] = (byte) (value >> 24);
+    bytes[offset + 1] = (byte) (value >> 16);
+    bytes[offset + 2] = (byte) (value >> 8);
+    bytes[offset + 3] = (byte) value;
+  }
+
+  private static int readInt(byte[] bytes, int offset) {
+    return ((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16)
+            | ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+  }
+
+  //Same bytes DataOutputStream.writeUTF would put on the wire.
+  private static byte[] utfFrame(String message) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(message.length() + 2);
+    try {
+      new DataOutputStream(bytes).writeUTF(message);
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Message too long: " + message.length(), e);
+    }
+    return bytes.toByteArray();
+  }
+}
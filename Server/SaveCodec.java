@@ -0,0 +1,171 @@
+package Server;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/*
+* Binary format of the boards kept in the save table.
+*
+*   byte VERSION, short rows, short cols, int timeRemain,
+*   byte flags (1 won, 2 lost, 4 generated from a seed),
+*   long seed and double density for generated boards, otherwise a mine
+*   bitmap with one bit per cell, row major from the low bit of each byte,
+*   then the cell states as runs: byte state, varint length.
+*
+* Generated boards store no mines at all, they come back from the seed.
+* Runs of hidden cells at the end are left out, so a board costs about
+* what has been played on it rather than its size.
+*
+* Rows saved before this format hold MineSweeperBoard.toString() text,
+* decode() reads both.
+* */
+final class SaveCodec {
+  static final int VERSION = 1;
+  private static final int WON = 1, LOST = 2, SEEDED = 4;
+
+  private SaveCodec() {}
+
+  static byte[] encode(MineSweeperBoard board) {
+    int rows = board.getRows();
+    int cols = board.getColumns();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.writeByte(VERSION);
+      out.writeShort(rows);
+      out.writeShort(cols);
+      out.writeInt(board.getTimeRemain());
+      out.writeByte((board.getGameWon() ? WON : 0) | (board.getGameLost() ? LOST : 0)
+              | (board.isSeeded() ? SEEDED : 0));
+      if (board.isSeeded()) {
+        out.writeLong(board.getSeed());
+        out.writeDouble(board.getDensity());
+      }
+      else
+        out.write(mineBitmap(board));
+
+      byte state = 0;
+      int run = 0;
+      for (int i = 0; i < rows; i++) {
+        for (int j = 0; j < cols; ) {
+          //untouched chunks are all hidden, their rows are skipped whole
+          int width = 1;
+          byte next;
+          if (j % MineSweeperBoard.CHUNK == 0 && board.isUntouched(i, j)) {
+            width = Math.min(MineSweeperBoard.CHUNK, cols - j);
+            next = 0;
+          }
+          else
+            next = board.getState(i, j);
+          if (next != state && run > 0) {
+            out.writeByte(state);
+            writeVarint(out, run);
+            run = 0;
+          }
+          state = next;
+          run += width;
+          j += width;
+        }
+      }
+      if (state != 0) {
+        out.writeByte(state);
+        writeVarint(out, run);
+      }
+    } catch (IOException e) {
+      //a ByteArrayOutputStream does not throw
+      throw new UncheckedIOException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  //A board from the save column, either this format or the old text.
+  static MineSweeperBoard decode(Object save) {
+    if (save instanceof String)
+      return new MineSweeperBoard((String) save);
+    ByteBuffer in = ByteBuffer.wrap((byte[]) save);
+    try {
+      int version = in.get() & 0xFF;
+      if (version != VERSION)
+        throw new IllegalArgumentException("Unknown save format " + version);
+      int rows = in.getShort() & 0xFFFF;
+      int cols = in.getShort() & 0xFFFF;
+      int time = in.getInt();
+      int flags = in.get() & 0xFF;
+      boolean won = (flags & WON) != 0;
+      boolean lost = (flags & LOST) != 0;
+
+      MineSweeperBoard board;
+      if ((flags & SEEDED) != 0) {
+        long seed = in.getLong();
+        board = new MineSweeperBoard(rows, cols, in.getDouble(), seed);
+        board.setTimeRemain(time);
+        board.setResult(won, lost);
+      }
+      else {
+        board = new MineSweeperBoard(rows, cols, time, won, lost);
+        int mineBytes = (rows * cols + 7) / 8;
+        for (int k = 0; k < mineBytes; k++) {
+          for (int bits = in.get() & 0xFF; bits != 0; bits &= bits - 1) {
+            int cell = (k << 3) + Integer.numberOfTrailingZeros(bits);
+            board.setMine(cell / cols, cell % cols);
+          }
+        }
+      }
+
+      int cells = rows * cols;
+      for (int cell = 0; cell < cells && in.hasRemaining(); ) {
+        byte state = in.get();
+        int run = readVarint(in);
+        if (run <= 0 || run > cells - cell)
+          throw new IllegalArgumentException("Bad run of " + run + " cells at " + cell);
+        if (state != 0) {
+          for (int end = cell + run; cell < end; cell++)
+            board.restoreState(cell, state);
+        }
+        else
+          cell += run;
+      }
+      return board;
+    } catch (BufferUnderflowException e) {
+      throw new IllegalArgumentException("Truncated save", e);
+    }
+  }
+
+  private static byte[] mineBitmap(MineSweeperBoard board) {
+    int rows = board.getRows();
+    int cols = board.getColumns();
+    byte[] mines = new byte[(rows * cols + 7) / 8];
+    long[][] band = null;
+    int cell = 0;
+    for (int i = 0; i < rows; i++) {
+      if (i % MineSweeperBoard.CHUNK == 0)
+        band = board.getMineBand(i);
+      for (int j = 0; j < cols; j++, cell++) {
+        if (MineSweeperBoard.isMine(band, i, j))
+          mines[cell >> 3] |= 1 << (cell & 7);
+      }
+    }
+    return mines;
+  }
+
+  //Seven bits per byte, low bits first, high bit set on all but the last byte.
+  private static void writeVarint(DataOutputStream out, int value) throws IOException {
+    while ((value & ~0x7F) != 0) {
+      out.writeByte((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte(value);
+  }
+
+  private static int readVarint(ByteBuffer in) {
+    int value = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      int b = in.get() & 0xFF;
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0)
+        return value;
+    }
+    throw new IllegalArgumentException("Bad varint");
+  }
+}
@@ -0,0 +1,25 @@
+package Server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+* Services shared by all sessions of a server.
+* */
+final class ServerContext {
+  final EventLog log;
+  final GameDatabase db;
+  final ServerStats stats;
+  final Leaderboard leaderboard;
+  final SlotDirectory slots;
+  //live games by client number, for WATCH
+  final Map<Integer, Spectators> games = new ConcurrentHashMap<>();
+
+  ServerContext(EventLog log, GameDatabase db, ServerStats stats, Leaderboard leaderboard, SlotDirectory slots) {
+    this.log = log;
+    this.db = db;
+    this.stats = stats;
+    this.leaderboard = leaderboard;
+    this.slots = slots;
+  }
+}
@@ -0,0 +1,165 @@
+package Server;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+* Server wide statistics for the STATS command and JMX.
+*
+* Each command a session handles is recorded with its latency, the part of
+* that spent waiting on SQLite and the bytes read and written. Clock ticks
+* are recorded as TIME. Recording is a handful of atomic adds, cheap enough
+* to stay on for every move.
+* */
+final class ServerStats implements ServerStatsMXBean {
+  private static final String[] COMMANDS = {"UPDATE", "MOVES", "NEW", "GETLOAD", "LOADFROM", "GETSAVE", "SAVETO",
+          "PLAYER", "SCORE", "NAME", "HELLO", "RESYNC", "WATCH", "STATS", "EXIT", "TIME", "OTHER"};
+
+  private final Map<String, CommandStats> commands = new LinkedHashMap<>();
+  private final AtomicInteger activeSessions = new AtomicInteger();
+  private final LongAdder totalSessions = new LongAdder();
+  private final LatencyHistogram tickLag = new LatencyHistogram();
+
+  ServerStats() {
+    for (String command : COMMANDS)
+      commands.put(command, new CommandStats());
+  }
+
+  void register() throws JMException {
+    ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("MineSweeper:type=ServerStats"));
+  }
+
+  //Stats of a command, commands the server does not know share one entry.
+  CommandStats command(String id) {
+    CommandStats stats = commands.get(id);
+    return stats != null ? stats : commands.get("OTHER");
+  }
+
+  void sessionOpened() {
+    activeSessions.incrementAndGet();
+    totalSessions.increment();
+  }
+
+  void sessionClosed() {
+    activeSessions.decrementAndGet();
+  }
+
+  //How long after its due time a clock tick started.
+  void tickLag(long nanos) {
+    tickLag.record(nanos);
+  }
+
+  //Text table for the STATS command.
+  String report() {
+    StringBuilder sb = new StringBuilder();
+    for (String line : getReport())
+      sb.append(line).append('\n');
+    return sb.toString();
+  }
+
+  @Override
+  public int getActiveSessions() {
+    return activeSessions.get();
+  }
+
+  @Override
+  public long getTotalSessions() {
+    return totalSessions.sum();
+  }
+
+  @Override
+  public long getCommandCount() {
+    long count = 0;
+    for (CommandStats stats : commands.values())
+      count += stats.count.sum();
+    return count;
+  }
+
+  @Override
+  public double getDatabaseTimePercent() {
+    long total = 0, db = 0;
+    for (CommandStats stats : commands.values()) {
+      total += stats.nanos.sum();
+      db += stats.dbNanos.sum();
+    }
+    return total == 0 ? 0 : 100.0 * db / total;
+  }
+
+  @Override
+  public int getPendingTicks() {
+    return GameClock.pendingTicks();
+  }
+
+  @Override
+  public int getRunningTicks() {
+    return GameClock.runningTicks();
+  }
+
+  @Override
+  public long getTickLagP99Micros() {
+    return tickLag.percentile(0.99) / 1000;
+  }
+
+  @Override
+  public String[] getReport() {
+    String[] lines = new String[commands.size() + 2];
+    int n = 0;
+    lines[n++] = String.format("sessions %d (%d total), ticks pending %d running %d, tick lag p99 %dus max %dus",
+            getActiveSessions(), getTotalSessions(), getPendingTicks(), getRunningTicks(),
+            getTickLagP99Micros(), tickLag.max() / 1000);
+    lines[n++] = String.format("%-8s %9s %9s %9s %9s %9s %5s %11s %11s",
+            "command", "count", "p50 us", "p99 us", "p99.9 us", "max us", "db %", "bytes in", "bytes out");
+    for (Map.Entry<String, CommandStats> entry : commands.entrySet()) {
+      CommandStats stats = entry.getValue();
+      long count = stats.count.sum();
+      if (count == 0)
+        continue;
+      long nanos = stats.nanos.sum();
+      lines[n++] = String.format("%-8s %9d %9d %9d %9d %9d %5.1f %11d %11d", entry.getKey(), count,
+              stats.latency.percentile(0.5) / 1000, stats.latency.percentile(0.99) / 1000,
+              stats.latency.percentile(0.999) / 1000, stats.latency.max() / 1000,
+              nanos == 0 ? 0.0 : 100.0 * stats.dbNanos.sum() / nanos,
+              stats.bytesIn.sum(), stats.bytesOut.sum());
+    }
+    return java.util.Arrays.copyOf(lines, n);
+  }
+
+  @Override
+  public void reset() {
+    for (CommandStats stats : commands.values())
+      stats.reset();
+    tickLag.reset();
+  }
+
+  static final class CommandStats {
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder count = new LongAdder();
+    private final LongAdder nanos = new LongAdder();
+    private final LongAdder dbNanos = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+
+    void record(long nanos, long dbNanos, long bytesIn, long bytesOut) {
+      latency.record(nanos);
+      count.increment();
+      this.nanos.add(nanos);
+      this.dbNanos.add(dbNanos);
+      this.bytesIn.add(bytesIn);
+      this.bytesOut.add(bytesOut);
+    }
+
+    private void reset() {
+      latency.reset();
+      count.reset();
+      nanos.reset();
+      dbNanos.reset();
+      bytesIn.reset();
+      bytesOut.reset();
+    }
+  }
+}
@@ -0,0 +1,28 @@
+package Server;
+
+/*
+* JMX view of the server statistics, registered as MineSweeper:type=ServerStats.
+* */
+public interface ServerStatsMXBean {
+  int getActiveSessions();
+
+  long getTotalSessions();
+
+  long getCommandCount();
+
+  //Share of all command time spent waiting on SQLite.
+  double getDatabaseTimePercent();
+
+  //Clock ticks scheduled for running games.
+  int getPendingTicks();
+
+  //Clock ticks that are due and not finished yet.
+  int getRunningTicks();
+
+  long getTickLagP99Micros();
+
+  //Same table as the STATS command, one line per entry.
+  String[] getReport();
+
+  void reset();
+}
@@ -0,0 +1,158 @@
+package Server;
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/*
+* Info lines of all save slots, kept in memory so GETLOAD and GETSAVE never
+* go to the database. SAVETO updates the entry once its write went through.
+*
+* Slots come in ranges of SLOTS. A session starts on the shared range 1-5,
+* PLAYER <name> moves it to the player's own range, which is assigned on
+* first use and stored in the players table.
+*
+* It also tracks what each slot's move log holds, so a session saving the
+* same game again only writes the moves played since, see save().
+* */
+final class SlotDirectory {
+  static final int SLOTS = 5;
+  static final int SHARED = 1;
+  private static final String EMPTY = "Empty slot";
+
+  private final GameDatabase db;
+  private final Map<Integer, String> info;
+  private final Map<String, Integer> players;
+  //guards handing out new ranges
+  private final ReentrantLock lock = new ReentrantLock();
+  private int nextRange = SHARED + SLOTS;
+  //move log state of slots saved since startup, guarded by saveLock
+  private final Map<Integer, SlotLog> logs = new HashMap<>();
+  private final ReentrantLock saveLock = new ReentrantLock();
+
+  SlotDirectory(GameDatabase db) throws SQLException {
+    this.db = db;
+    info = new ConcurrentHashMap<>(db.getSaveInfo());
+    players = new ConcurrentHashMap<>(db.getPlayers());
+    for (int first : players.values())
+      nextRange = Math.max(nextRange, first + SLOTS);
+  }
+
+  //First slot of the player's range, a new range is stored on first use.
+  int firstSlot(String player) throws SQLException {
+    Integer first = players.get(player);
+    if (first != null)
+      return first;
+    lock.lock();
+    try {
+      first = players.get(player);
+      if (first == null) {
+        first = nextRange;
+        db.addPlayer(player, first);
+        nextRange += SLOTS;
+        players.put(player, first);
+      }
+      return first;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  //Slot id of a position 1 to SLOTS within the range starting at first.
+  static int slot(int first, int position) {
+    if (position < 1 || position > SLOTS)
+      throw new IllegalArgumentException("No save slot " + position);
+    return first + position - 1;
+  }
+
+  //The range's info lines, each followed by a comma.
+  String list(int first) {
+    StringBuilder s = new StringBuilder();
+    for (int i = 0; i < SLOTS; i++)
+      s.append(info.getOrDefault(first + i, EMPTY)).append(",");
+    return s.toString();
+  }
+
+  boolean isUsed(int slot) {
+    return info.containsKey(slot);
+  }
+
+  void saved(int slot, String line) {
+    info.put(slot, line);
+  }
+
+  /*
+  * Queue a save of the session's game. If the slot still holds this game
+  * the moves played since are appended to it, as long as its log stays
+  * within MoveLog.COMPACT_AFTER. Otherwise the slot gets a new snapshot:
+  * the board at its start plus all moves for a short new game, the
+  * current board for anything else.
+  * Must be called with the session's board lock held. Returns false if
+  * the database queue is full.
+  * */
+  boolean save(int slot, String info, MineSweeperBoard board, MoveLog moves, Consumer<SQLException> done) {
+    saveLock.lock();
+    try {
+      SlotLog log = logs.computeIfAbsent(slot, k -> new SlotLog());
+      int from = moves.appendFrom(slot, log.generation, log.length);
+      byte[] snapshot = null;
+      int[] entries;
+      int generation = log.generation, length;
+      MineSweeperBoard start;
+      if (from >= 0 && log.length + moves.length() - from <= MoveLog.COMPACT_AFTER) {
+        entries = moves.entries(from, moves.length());
+        length = log.length + moves.length() - from;
+      }
+      else {
+        generation++;
+        if (moves.isFromStart() && moves.length() <= MoveLog.COMPACT_AFTER && (start = board.startBoard()) != null) {
+          snapshot = SaveCodec.encode(start);
+          entries = moves.entries(0, moves.length());
+          length = moves.length();
+        }
+        else {
+          snapshot = SaveCodec.encode(board);
+          entries = new int[0];
+          length = 0;
+        }
+      }
+      int saved = generation;
+      if (!db.saveGameLater(slot, info, snapshot, entries, e -> {
+        if (e != null)
+          lost(slot, saved);
+        done.accept(e);
+      }))
+        return false;
+      log.generation = generation;
+      log.length = length;
+      moves.storedIn(slot, generation, length);
+      return true;
+    } finally {
+      saveLock.unlock();
+    }
+  }
+
+  //A write to the slot failed, no session may append to what it left behind.
+  private void lost(int slot, int generation) {
+    saveLock.lock();
+    try {
+      SlotLog log = logs.get(slot);
+      if (log.generation == generation)
+        log.generation++;
+    } finally {
+      saveLock.unlock();
+    }
+  }
+
+  /*
+  * Bumped by every snapshot written to a slot, a session may only append
+  * to the log of the generation it wrote itself.
+  * */
+  private static final class SlotLog {
+    int generation = 0;
+    int length = 0;
+  }
+}
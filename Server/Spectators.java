@@ -0,0 +1,227 @@
+package Server;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntFunction;
+
+/*
+* Connections watching one session's game with WATCH.
+*
+* The player publishes every frame it sends while holding its board lock.
+* Each frame is encoded once per protocol version in use, and the same
+* bytes are queued for every watcher on that version. Watchers are fed by
+* their own drain task on a separate pool, so the player only ever pays
+* for the encoding and a queue insert, however slow a watcher is.
+*
+* A watcher that falls more than MAX_BACKLOG frames behind, or whose
+* socket has more than MAX_UNSENT bytes waiting, loses its queued frames
+* and gets a full board once it has caught up.
+*
+* Frames are encoded per Protocol.wireFormat(), so watchers on versions
+* that only differ in how often TIME is sent share the same bytes.
+* */
+final class Spectators {
+  static final int MAX_BACKLOG = 64;
+  static final long MAX_UNSENT = 1 << 20;
+  private static final long RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+  private static final ExecutorService drains = Executors.newCachedThreadPool(r -> {
+    Thread t = new Thread(r, "MineSweeper-watch");
+    t.setDaemon(true);
+    return t;
+  });
+  //drains waiting for a slow socket, kept off GameClock so they do not count as pending ticks
+  private static final ScheduledExecutorService retries = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread t = new Thread(r, "MineSweeper-watch-retry");
+    t.setDaemon(true);
+    return t;
+  });
+
+  private final ReentrantLock boardLock;
+  //full board frame in the given protocol version, called with boardLock held
+  private final IntFunction<byte[]> fullBoard;
+  //run with boardLock held when a watcher joins that needs TIME every second
+  private final Runnable ticksNeeded;
+  private final CopyOnWriteArrayList<Watcher> watchers = new CopyOnWriteArrayList<>();
+  //frames of the publish in progress by wire format, guarded by boardLock
+  private final byte[][] encoded = new byte[Protocol.BINARY + 1][];
+
+  Spectators(ReentrantLock boardLock, IntFunction<byte[]> fullBoard, Runnable ticksNeeded) {
+    this.boardLock = boardLock;
+    this.fullBoard = fullBoard;
+    this.ticksNeeded = ticksNeeded;
+  }
+
+  //Start sending the game to a connection, beginning with the full board.
+  Watcher add(MessageSink sink, int protocol) {
+    if (protocol < Protocol.TEXT || protocol > Protocol.LATEST)
+      throw new IllegalArgumentException("Unknown protocol version " + protocol);
+    Watcher watcher = new Watcher(sink, protocol);
+    boardLock.lock();
+    try {
+      watchers.add(watcher);
+      watcher.behind = true;
+      watcher.schedule();
+      if (protocol < Protocol.COUNTDOWN)
+        ticksNeeded.run();
+    } finally {
+      boardLock.unlock();
+    }
+    return watcher;
+  }
+
+  void remove(Watcher watcher) {
+    watchers.remove(watcher);
+  }
+
+  //True if a watcher does not count down itself and needs TIME every second.
+  boolean needTicks() {
+    for (Watcher watcher : watchers) {
+      if (watcher.protocol < Protocol.COUNTDOWN)
+        return true;
+    }
+    return false;
+  }
+
+  /*
+  * Queue a frame for every watcher. encoder gives the frame in a wire
+  * format and is called at most once per format. Must be called with
+  * boardLock held.
+  * */
+  void publish(IntFunction<byte[]> encoder) {
+    if (watchers.isEmpty())
+      return;
+    try {
+      for (Watcher watcher : watchers) {
+        byte[] frame = encoded[watcher.format];
+        if (frame == null) {
+          try {
+            frame = encoded[watcher.format] = encoder.apply(watcher.format);
+          } catch (IllegalArgumentException e) {
+            //a text client cannot follow a board that outgrew writeUTF
+            watcher.last(Protocol.textFrame(watcher.protocol, "ERROR\t" + e.getMessage()));
+            watchers.remove(watcher);
+            continue;
+          }
+        }
+        watcher.offer(frame);
+      }
+    } finally {
+      for (int v = 0; v < encoded.length; v++)
+        encoded[v] = null;
+    }
+  }
+
+  //The game is gone, tell every watcher and drop them.
+  void close(String message) {
+    for (Watcher watcher : watchers)
+      watcher.last(Protocol.textFrame(watcher.protocol, message));
+    watchers.clear();
+  }
+
+  /*
+  * One watching connection. Frames are queued by the player and written
+  * by a single drain task at a time.
+  * */
+  final class Watcher {
+    private final MessageSink sink;
+    final int protocol;
+    private final int format;
+    private final Queue<byte[]> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    //queued frames were dropped, the next frame sent is a full board. Changed with boardLock held.
+    private volatile boolean behind = false;
+    private volatile boolean closed = false;
+
+    private Watcher(MessageSink sink, int protocol) {
+      this.sink = sink;
+      this.protocol = protocol;
+      this.format = Protocol.wireFormat(protocol);
+    }
+
+    //Called by the player with boardLock held.
+    private void offer(byte[] frame) {
+      if (behind || closed)
+        return;
+      if (queued.get() >= MAX_BACKLOG || sink.unsent() > MAX_UNSENT) {
+        behind = true;
+        queue.clear();
+        queued.set(0);
+      }
+      else {
+        queue.add(frame);
+        queued.incrementAndGet();
+      }
+      schedule();
+    }
+
+    //Send one more frame after the ones queued, then nothing.
+    private void last(byte[] frame) {
+      queue.add(frame);
+      queued.incrementAndGet();
+      closed = true;
+      schedule();
+    }
+
+    //Stop sending, frames still queued are dropped.
+    void stop() {
+      closed = true;
+      queue.clear();
+      remove(this);
+    }
+
+    private void schedule() {
+      if (scheduled.compareAndSet(false, true))
+        drains.execute(this::drain);
+    }
+
+    //Runs on the drain pool.
+    private void drain() {
+      try {
+        while (true) {
+          if (sink.unsent() > MAX_UNSENT) {
+            if (closed) {
+              queue.clear();
+              break;
+            }
+            //the socket is not keeping up, look again later instead of piling on
+            retries.schedule(() -> drains.execute(this::drain), RETRY_NANOS, TimeUnit.NANOSECONDS);
+            return;
+          }
+          byte[] frame = null;
+          //only a resync takes the player's lock
+          if (behind) {
+            boardLock.lock();
+            try {
+              if (behind && !closed) {
+                queue.clear();
+                queued.set(0);
+                behind = false;
+                frame = fullBoard.apply(format);
+              }
+            } finally {
+              boardLock.unlock();
+            }
+          }
+          if (frame == null) {
+            frame = queue.poll();
+            if (frame == null)
+              break;
+            queued.decrementAndGet();
+          }
+          sink.send(frame);
+        }
+      } catch (IOException | IllegalArgumentException e) {
+        stop();
+      }
+      scheduled.set(false);
+      //a frame offered after the last poll saw the flag still set
+      if ((!queue.isEmpty() || (behind && !closed)) && scheduled.compareAndSet(false, true))
+        drains.execute(this::drain);
+    }
+  }
+}
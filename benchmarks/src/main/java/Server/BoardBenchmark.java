@@ -0,0 +1,102 @@
+package Server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+* Board operations the server runs for every game, on square boards of the
+* given size and share of mines. The seed is fixed so every run plays the
+* same layouts.
+* */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BoardBenchmark {
+  static final long SEED = 20210401L;
+
+  @Param({"16", "128", "1024"})
+  int size;
+
+  @Param({"0.05", "0.16"})
+  double density;
+
+  //board opened at the cascade start, used by the read only benchmarks
+  private MineSweeperBoard played;
+  private String text;
+  private int startY, startX;
+  private int flagY, flagX;
+  private long seed = SEED;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    played = new MineSweeperBoard(size, size, density, SEED);
+    int cells = size * size;
+    for (int k = 0; k < cells; k++) {
+      int cell = (cells / 2 + size / 2 + k) % cells;
+      if (!played.isMine(cell / size, cell % size) && played.getAdjacentMines(cell / size, cell % size) == 0) {
+        startY = cell / size;
+        startX = cell % size;
+        break;
+      }
+    }
+    played.reveal(startY, startX);
+    for (int k = 0; k < cells; k++) {
+      if (played.getState(k / size, k % size) == 0) {
+        flagY = k / size;
+        flagX = k % size;
+        break;
+      }
+    }
+    played.clearChanges();
+    text = played.toString();
+  }
+
+  //An untouched copy of the benchmark's board for every call.
+  @State(Scope.Thread)
+  public static class FreshBoard {
+    MineSweeperBoard board;
+
+    @Setup(Level.Invocation)
+    public void setUp(BoardBenchmark benchmark) {
+      board = new MineSweeperBoard(benchmark.size, benchmark.size, benchmark.density, SEED);
+    }
+  }
+
+  @Benchmark
+  public MineSweeperBoard generate() {
+    return new MineSweeperBoard(size, size, density, seed++);
+  }
+
+  @Benchmark
+  public MineSweeperBoard revealCascade(FreshBoard fresh) {
+    fresh.board.reveal(startY, startX);
+    return fresh.board;
+  }
+
+  //Cycles the cell through flagged, crossed and hidden.
+  @Benchmark
+  public int setFlag() {
+    played.clearChanges();
+    played.setFlag(flagY, flagX);
+    return played.getChangeCount();
+  }
+
+  @Benchmark
+  public boolean checkWinCon() {
+    return played.checkWinCon();
+  }
+
+  @Benchmark
+  public String boardToString() {
+    return played.toString();
+  }
+
+  @Benchmark
+  public MineSweeperBoard parse() {
+    return new MineSweeperBoard(text);
+  }
+}
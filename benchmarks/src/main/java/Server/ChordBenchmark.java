@@ -0,0 +1,108 @@
+package Server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+* UPDATE commands needed to clear a board, by a player that knows where
+* the mines are. plain reveals every safe cell it finds hidden, chord
+* flags the mines around a number and chords it whenever that opens more
+* cells than the flags cost. The messages and games counters give the
+* commands per game, the time is what the server spends on a game.
+* */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ChordBenchmark {
+  @Param({"16", "64"})
+  int size;
+
+  @Param({"0.12", "0.16", "0.20"})
+  double density;
+
+  private long seed = BoardBenchmark.SEED;
+
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  @State(Scope.Thread)
+  public static class Counters {
+    public long messages;
+    public long games;
+
+    @Setup(Level.Iteration)
+    public void clear() {
+      messages = 0;
+      games = 0;
+    }
+  }
+
+  @Benchmark
+  public MineSweeperBoard plain(Counters counters) {
+    MineSweeperBoard board = new MineSweeperBoard(size, size, density, seed++);
+    for (int cell = 0; cell < size * size && !board.getGameWon(); cell++) {
+      int y = cell / size, x = cell % size;
+      if (board.getState(y, x) != 0 || board.isMine(y, x))
+        continue;
+      board.play(MoveLog.REVEAL, y, x);
+      counters.messages++;
+    }
+    counters.games++;
+    return board;
+  }
+
+  @Benchmark
+  public MineSweeperBoard chord(Counters counters) {
+    MineSweeperBoard board = new MineSweeperBoard(size, size, density, seed++);
+    for (int cell = 0; cell < size * size && !board.getGameWon(); cell++) {
+      int y = cell / size, x = cell % size;
+      if (board.getState(y, x) != 0 || board.isMine(y, x))
+        continue;
+      int number = worthChording(board, y, x);
+      if (number < 0) {
+        board.play(MoveLog.REVEAL, y, x);
+        counters.messages++;
+        continue;
+      }
+      int ny = number / size, nx = number % size;
+      for (int i = Math.max(ny - 1, 0); i <= Math.min(ny + 1, size - 1); i++) {
+        for (int j = Math.max(nx - 1, 0); j <= Math.min(nx + 1, size - 1); j++) {
+          if (board.isMine(i, j) && board.getState(i, j) == 0) {
+            board.play(MoveLog.FLAG, i, j);
+            counters.messages++;
+          }
+        }
+      }
+      board.play(MoveLog.CHORD, ny, nx);
+      counters.messages++;
+    }
+    counters.games++;
+    return board;
+  }
+
+  //A revealed number next to y,x whose chord opens more than it costs, or -1.
+  private int worthChording(MineSweeperBoard board, int y, int x) {
+    for (int i = Math.max(y - 1, 0); i <= Math.min(y + 1, size - 1); i++) {
+      for (int j = Math.max(x - 1, 0); j <= Math.min(x + 1, size - 1); j++) {
+        if (board.getState(i, j) != -1 || board.getAdjacentMines(i, j) == 0)
+          continue;
+        int safe = 0, flags = 0;
+        for (int k = Math.max(i - 1, 0); k <= Math.min(i + 1, size - 1); k++) {
+          for (int l = Math.max(j - 1, 0); l <= Math.min(j + 1, size - 1); l++) {
+            if (board.getState(k, l) != 0)
+              continue;
+            if (board.isMine(k, l))
+              flags++;
+            else
+              safe++;
+          }
+        }
+        if (safe > flags + 1)
+          return i * size + j;
+      }
+    }
+    return -1;
+  }
+}
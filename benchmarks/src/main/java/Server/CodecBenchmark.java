@@ -0,0 +1,58 @@
+package Server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+* Binary wire format: full board frames both ways, and the delta frame
+* sent after a single flag.
+* */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+  @Param({"16", "128", "1024"})
+  int size;
+
+  private MineSweeperBoard board;
+  private byte[] payload;
+  private int flagY, flagX;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    board = new MineSweeperBoard(size, size, 0.16, BoardBenchmark.SEED);
+    //open a few areas so the states are not all hidden
+    for (int k = 0; k < 16; k++)
+      board.reveal(size * k / 16, size * ((k * 7) % 16) / 16);
+    for (int k = size * size - 1; k >= 0; k--) {
+      if (board.getState(k / size, k % size) == 0) {
+        flagY = k / size;
+        flagX = k % size;
+        break;
+      }
+    }
+    board.clearChanges();
+    payload = Protocol.encodeBoard(board);
+  }
+
+  @Benchmark
+  public byte[] encodeBoard() {
+    return Protocol.encodeBoard(board);
+  }
+
+  @Benchmark
+  public MineSweeperBoard decodeBoard() {
+    return Protocol.decodeBoard(payload);
+  }
+
+  @Benchmark
+  public byte[] flagDelta() {
+    board.clearChanges();
+    board.setFlag(flagY, flagX);
+    return Protocol.deltaFrame(Protocol.BINARY, board);
+  }
+}
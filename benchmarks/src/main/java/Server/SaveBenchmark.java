@@ -0,0 +1,54 @@
+package Server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+* Save formats: the board text from before SaveCodec against its binary
+* encoding, both ways.
+* */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SaveBenchmark {
+  @Param({"16", "128", "1024"})
+  int size;
+
+  private MineSweeperBoard board;
+  private String text;
+  private byte[] binary;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    board = new MineSweeperBoard(size, size, 0.16, BoardBenchmark.SEED);
+    //open a few areas so the states are not all hidden
+    for (int k = 0; k < 16; k++)
+      board.reveal(size * k / 16, size * ((k * 7) % 16) / 16);
+    text = board.toString();
+    binary = SaveCodec.encode(board);
+  }
+
+  @Benchmark
+  public String encodeText() {
+    return board.toString();
+  }
+
+  @Benchmark
+  public byte[] encodeBinary() {
+    return SaveCodec.encode(board);
+  }
+
+  @Benchmark
+  public MineSweeperBoard decodeText() {
+    return SaveCodec.decode(text);
+  }
+
+  @Benchmark
+  public MineSweeperBoard decodeBinary() {
+    return SaveCodec.decode(binary);
+  }
+}
@@ -0,0 +1,148 @@
+package Server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.SplittableRandom;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+* The iterative flood fill in MineSweeperBoard.cascade() against the
+* recursive reveal it replaced, kept here as Reference.
+* */
+class CascadeTest {
+
+  @Test
+  void revealMatchesRecursiveReveal() {
+    SplittableRandom random = new SplittableRandom(20210401L);
+    for (int game = 0; game < 3000; game++) {
+      int rows = 1 + random.nextInt(40);
+      int cols = 1 + random.nextInt(40);
+      MineSweeperBoard board = new MineSweeperBoard(rows, cols, 1000, false, false);
+      for (int mines = random.nextInt(rows * cols * 3 / 10 + 1); mines > 0; mines--)
+        board.setMine(random.nextInt(rows), random.nextInt(cols));
+      Reference reference = new Reference(board);
+      for (int move = 0; move < 60 && !board.getGameLost(); move++) {
+        int y = random.nextInt(rows), x = random.nextInt(cols);
+        if (random.nextInt(5) == 0) {
+          board.setFlag(y, x);
+          reference.setFlag(y, x);
+        }
+        else {
+          board.reveal(y, x);
+          reference.reveal(y, x);
+        }
+        assertEquals(reference.lost, board.getGameLost(), "game " + game + " move " + move);
+        if (board.getGameLost())
+          break;
+        for (int i = 0; i < rows; i++) {
+          for (int j = 0; j < cols; j++)
+            assertEquals(reference.state[i][j], board.getState(i, j), "game " + game + " move " + move + " cell " + i + ',' + j);
+        }
+        assertEquals(reference.won(), board.checkWinCon(), "game " + game + " move " + move);
+      }
+    }
+  }
+
+  @Test
+  void largeOpenBoardDoesNotOverflowTheStack() {
+    MineSweeperBoard board = new MineSweeperBoard(1000, 1000, 1000, false, false);
+    board.setMine(999, 999);
+    board.reveal(500, 500);
+    assertTrue(board.checkWinCon());
+    assertEquals(-1, board.getState(0, 0));
+    assertEquals(0, board.getState(999, 999));
+  }
+
+  @Test
+  void changesAreRecordedAfterALargeCascade() {
+    MineSweeperBoard board = new MineSweeperBoard(200, 200, 1000, false, false);
+    board.setMine(199, 199);
+    board.setMine(199, 197);
+    board.clearChanges();
+    board.play(MoveLog.REVEAL, 0, 0);
+    assertEquals(200 * 200 - 3, board.getChangeCount());
+    board.clearChanges();
+    board.play(MoveLog.REVEAL, 199, 198);
+    assertEquals(1, board.getChangeCount());
+    assertEquals(199 * 200 + 198, board.getChange(0));
+    board.clearChanges();
+    board.play(MoveLog.FLAG, 199, 199);
+    assertEquals(1, board.getChangeCount());
+    assertEquals(199 * 200 + 199, board.getChange(0));
+  }
+
+  /*
+  * The reveal from before the flood fill: recursion over a plain grid,
+  * counting the neighbouring mines of every cell it visits.
+  * */
+  private static final class Reference {
+    final int rows, cols;
+    final boolean[][] mines;
+    final byte[][] state;
+    boolean lost = false;
+
+    Reference(MineSweeperBoard board) {
+      rows = board.getRows();
+      cols = board.getColumns();
+      mines = new boolean[rows][cols];
+      state = new byte[rows][cols];
+      for (int i = 0; i < rows; i++) {
+        for (int j = 0; j < cols; j++)
+          mines[i][j] = board.isMine(i, j);
+      }
+    }
+
+    void setFlag(int y, int x) {
+      if (state[y][x] == 2)
+        state[y][x] = 0;
+      else if (state[y][x] >= 0)
+        state[y][x]++;
+    }
+
+    void reveal(int y, int x) {
+      if (state[y][x] == 0) {
+        state[y][x] = -1;
+        if (mines[y][x])
+          lost = true;
+        else if (mineCount(y, x) == 0)
+          cascade(y, x);
+      }
+    }
+
+    private void cascade(int row, int col) {
+      for (int y = -1; y <= 1; y++) {
+        for (int x = -1; x <= 1; x++) {
+          int yPos = row + y;
+          int xPos = col + x;
+          if (yPos >= 0 && yPos < rows && xPos >= 0 && xPos < cols && state[yPos][xPos] >= 0) {
+            state[yPos][xPos] = -1;
+            if (mineCount(yPos, xPos) == 0)
+              cascade(yPos, xPos);
+          }
+        }
+      }
+    }
+
+    private int mineCount(int y, int x) {
+      int count = 0;
+      for (int i = -1; i <= 1; i++) {
+        for (int j = -1; j <= 1; j++) {
+          if (!(i == 0 && j == 0) && y + i >= 0 && y + i < rows && x + j >= 0 && x + j < cols && mines[y + i][x + j])
+            count++;
+        }
+      }
+      return count;
+    }
+
+    boolean won() {
+      for (int i = 0; i < rows; i++) {
+        for (int j = 0; j < cols; j++) {
+          if (!mines[i][j] && state[i][j] != -1)
+            return false;
+        }
+      }
+      return true;
+    }
+  }
+}
@@ -0,0 +1,39 @@
+package Server;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MineSweeperBoardTest {
+
+  @Test
+  void densityThatLeavesNoSafeCellIsRejected() {
+    assertThrows(IllegalArgumentException.class, () -> new MineSweeperBoard(1, 1, 0.9, 1));
+    assertThrows(IllegalArgumentException.class, () -> new MineSweeperBoard(2, 2, 0.9, 1));
+    MineSweeperBoard board = new MineSweeperBoard(1, 2, 0.5, 1);
+    assertFalse(board.checkWinCon());
+  }
+
+  @Test
+  void revealingAMineLosesEvenWithNoSafeCellLeft() {
+    MineSweeperBoard board = new MineSweeperBoard(1, 1, 1000, false, false);
+    board.setMine(0, 0);
+    assertFalse(board.play(MoveLog.REVEAL, 0, 0));
+    assertTrue(board.getGameLost());
+    assertFalse(board.getGameWon());
+  }
+
+  @Test
+  void onlyRevealingTheLastSafeCellWins() {
+    MineSweeperBoard board = new MineSweeperBoard(1, 2, 1000, false, false);
+    board.setMine(0, 1);
+    assertFalse(board.play(MoveLog.FLAG, 0, 0));
+    assertFalse(board.play(MoveLog.FLAG, 0, 0));
+    assertFalse(board.play(MoveLog.FLAG, 0, 0));
+    assertFalse(board.play(MoveLog.FLAG, 0, 1));
+    assertFalse(board.getGameWon());
+    assertTrue(board.play(MoveLog.REVEAL, 0, 0));
+    assertTrue(board.getGameWon());
+    assertFalse(board.getGameLost());
+  }
+}
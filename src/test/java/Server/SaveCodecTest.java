@@ -0,0 +1,122 @@
+package Server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.SplittableRandom;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+* Saves written by SaveCodec, rows still holding the old text format and
+* move logs replayed onto a loaded snapshot.
+* */
+class SaveCodecTest {
+
+  @Test
+  void seededBoardRoundTrips() {
+    SplittableRandom random = new SplittableRandom(19);
+    for (int game = 0; game < 200; game++) {
+      MineSweeperBoard board = new MineSweeperBoard(1 + random.nextInt(100), 1 + random.nextInt(100),
+              0.05 + random.nextDouble(0.25), random.nextLong());
+      play(board, random, random.nextInt(40));
+      assertSameBoard(board, SaveCodec.decode(SaveCodec.encode(board)), "game " + game);
+    }
+  }
+
+  @Test
+  void largeSeededBoardOnlyStoresWhatWasPlayed() {
+    MineSweeperBoard board = new MineSweeperBoard(2000, 2000, 0.15, 7);
+    board.play(MoveLog.FLAG, 1000, 1000);
+    byte[] save = SaveCodec.encode(board);
+    assertTrue(save.length < 1000, save.length + " bytes");
+    assertSameBoard(board, SaveCodec.decode(save), "2000x2000");
+  }
+
+  @Test
+  void unseededBoardRoundTrips() {
+    SplittableRandom random = new SplittableRandom(23);
+    for (int game = 0; game < 200; game++) {
+      MineSweeperBoard board = unseeded(random);
+      play(board, random, random.nextInt(40));
+      assertSameBoard(board, SaveCodec.decode(SaveCodec.encode(board)), "game " + game);
+    }
+  }
+
+  @Test
+  void textRowsMigrateToTheSameBoard() {
+    SplittableRandom random = new SplittableRandom(29);
+    for (int game = 0; game < 100; game++) {
+      MineSweeperBoard board = game % 2 == 0 ? unseeded(random)
+              : new MineSweeperBoard(1 + random.nextInt(40), 1 + random.nextInt(40), 0.15, random.nextLong());
+      play(board, random, random.nextInt(40));
+      //what LOADFROM does with a text row: decode it and queue its binary form
+      MineSweeperBoard loaded = SaveCodec.decode(board.toString());
+      assertSameBoard(board, loaded, "text of game " + game);
+      assertSameBoard(board, SaveCodec.decode(SaveCodec.encode(loaded)), "migrated game " + game);
+    }
+  }
+
+  @Test
+  void replayOnTheSnapshotGivesThePlayedBoard() {
+    SplittableRandom random = new SplittableRandom(31);
+    for (int game = 0; game < 200; game++) {
+      MineSweeperBoard board = game % 2 == 0 ? unseeded(random)
+              : new MineSweeperBoard(1 + random.nextInt(40), 1 + random.nextInt(40), 0.15, random.nextLong());
+      play(board, random, random.nextInt(10));
+      byte[] snapshot = SaveCodec.encode(board);
+      MoveLog log = new MoveLog(true);
+      for (int move = random.nextInt(30); move > 0 && !board.getGameLost() && !board.getGameWon(); move--) {
+        int op = random.nextInt(4) == 0 ? MoveLog.FLAG : MoveLog.REVEAL;
+        int y = random.nextInt(board.getRows()), x = random.nextInt(board.getColumns());
+        log.add(op, y, x);
+        board.play(op, y, x);
+      }
+      board.setTimeRemain(500);
+      log.add(MoveLog.TIME, 500, 0);
+      MineSweeperBoard loaded = SaveCodec.decode(snapshot);
+      MoveLog.replay(loaded, log.entries(0, log.length()));
+      assertSameBoard(board, loaded, "game " + game);
+    }
+  }
+
+  @Test
+  void replayedTimeoutLosesTheGame() {
+    MineSweeperBoard board = new MineSweeperBoard(8, 8, 0.15, 3);
+    MineSweeperBoard loaded = SaveCodec.decode(SaveCodec.encode(board));
+    MoveLog.replay(loaded, new int[] {MoveLog.TIME, 0, 1});
+    assertEquals(0, loaded.getTimeRemain());
+    assertTrue(loaded.getGameLost());
+    assertFalse(loaded.getGameWon());
+  }
+
+  //A board with mines placed by hand, saved with a mine bitmap.
+  private static MineSweeperBoard unseeded(SplittableRandom random) {
+    int rows = 1 + random.nextInt(70), cols = 1 + random.nextInt(70);
+    MineSweeperBoard board = new MineSweeperBoard(rows, cols, 1 + random.nextInt(1000), false, false);
+    for (int i = rows * cols / 8; i > 0; i--)
+      board.setMine(random.nextInt(rows), random.nextInt(cols));
+    return board;
+  }
+
+  private static void play(MineSweeperBoard board, SplittableRandom random, int moves) {
+    for (int move = 0; move < moves && !board.getGameLost() && !board.getGameWon(); move++) {
+      int op = random.nextInt(4) == 0 ? MoveLog.FLAG : MoveLog.REVEAL;
+      board.play(op, random.nextInt(board.getRows()), random.nextInt(board.getColumns()));
+    }
+  }
+
+  private static void assertSameBoard(MineSweeperBoard expected, MineSweeperBoard actual, String what) {
+    assertEquals(expected.getRows(), actual.getRows(), what);
+    assertEquals(expected.getColumns(), actual.getColumns(), what);
+    assertEquals(expected.getTimeRemain(), actual.getTimeRemain(), what);
+    assertEquals(expected.getGameWon(), actual.getGameWon(), what);
+    assertEquals(expected.getGameLost(), actual.getGameLost(), what);
+    assertEquals(expected.checkWinCon(), actual.checkWinCon(), what);
+    for (int i = 0; i < expected.getRows(); i++) {
+      for (int j = 0; j < expected.getColumns(); j++) {
+        assertEquals(expected.isMine(i, j), actual.isMine(i, j), what + " mine " + i + ',' + j);
+        assertEquals(expected.getState(i, j), actual.getState(i, j), what + " cell " + i + ',' + j);
+      }
+    }
+  }
+}